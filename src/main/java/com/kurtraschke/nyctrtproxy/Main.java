@@ -15,6 +15,8 @@
  */
 package com.kurtraschke.nyctrtproxy;
 
+import com.kurtraschke.nyctrtproxy.services.GtfsRelationalDaoProvider;
+import com.kurtraschke.nyctrtproxy.services.StaticGtfsReloader;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFileWriter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
@@ -48,6 +50,7 @@ import java.util.Set;
 import javax.inject.Inject;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -68,6 +71,10 @@ public class Main {
   @SuppressWarnings("unused")
   private AlertsProvider _alertsProvider;
 
+  @Inject
+  @SuppressWarnings("unused")
+  private StaticGtfsReloader _reloader;
+
   @Inject
   private LifecycleService _lifecycleService;
 
@@ -81,6 +88,8 @@ public class Main {
 
   private static final String ARG_CONFIG_FILE = "config";
 
+  private static final String ARG_COMPILE = "compile";
+
   private Injector _injector;
 
   public static void main(String[] args) throws IOException {
@@ -89,12 +98,17 @@ public class Main {
     ArgumentParser parser = ArgumentParsers.newArgumentParser("nyct-rt-proxy");
     parser.description("Produces a GTFS-realtime feed from the Washington State Ferries API");
     parser.addArgument("--" + ARG_CONFIG_FILE).type(File.class).help("configuration file path");
+    parser.addArgument("--" + ARG_COMPILE).action(Arguments.storeTrue())
+            .help("write static GTFS to the snapshot at NYCT.gtfsSnapshotPath, then exit");
     Namespace parsedArgs;
 
     try {
       parsedArgs = parser.parseArgs(args);
       File configFile = parsedArgs.get(ARG_CONFIG_FILE);
-      m.run(configFile);
+      if (parsedArgs.getBoolean(ARG_COMPILE))
+        m.compile(configFile);
+      else
+        m.run(configFile);
     } catch (CreationException | ConfigurationException | ProvisionException e) {
       _log.error("Error in startup:", e);
       System.exit(-1);
@@ -105,6 +119,27 @@ public class Main {
   }
 
   public void run(File configFile) {
+    createInjector(configFile);
+
+    _injector.getMembersInjector(Main.class).injectMembers(this);
+
+    configureExporter(getConfigurationValue(URL.class, "tripUpdates.url"),
+            getConfigurationValue(File.class, "tripUpdates.path"),
+            _tripUpdatesExporter);
+
+    configureExporter(getConfigurationValue(URL.class, "alerts.url"),
+            getConfigurationValue(File.class, "alerts.path"),
+            _alertsExporter);
+
+    _lifecycleService.start();
+  }
+
+  public void compile(File configFile) throws IOException {
+    createInjector(configFile);
+    _injector.getInstance(GtfsRelationalDaoProvider.class).compileSnapshot();
+  }
+
+  private void createInjector(File configFile) {
     Set<Module> modules = new HashSet<>();
     ProxyModule.addModuleAndDependencies(modules);
     _injector = Guice.createInjector(
@@ -122,18 +157,6 @@ public class Main {
       }
     },
             Rocoto.expandVariables(modules));
-
-    _injector.getMembersInjector(Main.class).injectMembers(this);
-
-    configureExporter(getConfigurationValue(URL.class, "tripUpdates.url"),
-            getConfigurationValue(File.class, "tripUpdates.path"),
-            _tripUpdatesExporter);
-
-    configureExporter(getConfigurationValue(URL.class, "alerts.url"),
-            getConfigurationValue(File.class, "alerts.path"),
-            _alertsExporter);
-
-    _lifecycleService.start();
   }
 
   private <T> T getConfigurationValue(Class<T> type, String configurationKey) {
@@ -18,6 +18,8 @@ package com.kurtraschke.nyctrtproxy;
 import com.kurtraschke.nyctrtproxy.services.CloudwatchProxyDataListener;
 import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
 import com.kurtraschke.nyctrtproxy.services.ProxyDataListener;
+import com.kurtraschke.nyctrtproxy.services.StaticGtfsReloader;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
 import com.kurtraschke.nyctrtproxy.services.TripMatcher;
 import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
@@ -27,9 +29,8 @@ import org.onebusaway.guice.jsr250.JSR250Module;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
+import com.google.inject.Provides;
 import com.google.inject.Scopes;
-import com.kurtraschke.nyctrtproxy.services.CalendarServiceDataProvider;
-import com.kurtraschke.nyctrtproxy.services.GtfsRelationalDaoProvider;
 
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
@@ -53,18 +54,18 @@ public class ProxyModule extends AbstractModule {
 
   @Override
   protected void configure() {
+    // All feeds are fetched concurrently from the same host, so allow more than the default 2 connections per route.
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setDefaultMaxPerRoute(10);
+    connectionManager.setMaxTotal(20);
     bind(HttpClientConnectionManager.class)
-            .toInstance(new PoolingHttpClientConnectionManager());
+            .toInstance(connectionManager);
 
     bind(ScheduledExecutorService.class)
             .toInstance(Executors.newSingleThreadScheduledExecutor());
 
-    bind(CalendarServiceData.class)
-            .toProvider(CalendarServiceDataProvider.class)
-            .in(Scopes.SINGLETON);
-
-    bind(GtfsRelationalDao.class)
-            .toProvider(GtfsRelationalDaoProvider.class)
+    // Static GTFS is held by the reloader rather than scoped here, so that reloaded GTFS replaces it.
+    bind(StaticGtfsReloader.class)
             .in(Scopes.SINGLETON);
 
     bind(ProxyDataListener.class)
@@ -81,6 +82,21 @@ public class ProxyModule extends AbstractModule {
             .toInstance(new SiriXmlSerializer());
   }
 
+  @Provides
+  GtfsRelationalDao provideGtfsRelationalDao(StaticGtfsReloader reloader) {
+    return reloader.getGtfsRelationalDao();
+  }
+
+  @Provides
+  CalendarServiceData provideCalendarServiceData(StaticGtfsReloader reloader) {
+    return reloader.getCalendarServiceData();
+  }
+
+  @Provides
+  StaticTripIndex provideStaticTripIndex(StaticGtfsReloader reloader) {
+    return reloader.getStaticTripIndex();
+  }
+
   /**
    * Implement hashCode() and equals() such that two instances of the module
    * will be equal.
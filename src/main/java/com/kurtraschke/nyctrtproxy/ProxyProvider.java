@@ -15,22 +15,19 @@
  */
 package com.kurtraschke.nyctrtproxy;
 
-import com.google.common.collect.Lists;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
 import com.kurtraschke.nyctrtproxy.model.MatchMetrics;
+import com.kurtraschke.nyctrtproxy.services.FeedReplayWarmup;
 import com.kurtraschke.nyctrtproxy.services.ProxyDataListener;
 import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
 
-import com.google.protobuf.ExtensionRegistry;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
-import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate;
-import com.google.transit.realtime.GtfsRealtimeNYCT;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
@@ -38,22 +35,36 @@ import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.LoggerFactory;
 
-import java.io.InputStream;
 import java.lang.reflect.Type;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Named;
 
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.hasEntities;
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.readFeedHeader;
+
 /**
  *
  * @author kurt
@@ -62,8 +73,6 @@ public class ProxyProvider {
 
   private static final org.slf4j.Logger _log = LoggerFactory.getLogger(ProxyProvider.class);
 
-  private static final ExtensionRegistry _extensionRegistry;
-
   private GtfsRealtimeSink _tripUpdatesSink;
 
   private String _key;
@@ -76,24 +85,31 @@ public class ProxyProvider {
 
   private ScheduledFuture _updater;
 
+  private ScheduledExecutorService _fetchExecutor;
+
   private TripUpdateProcessor _processor;
 
   private ProxyDataListener _listener;
 
+  private FeedReplayWarmup _warmup;
+
   private int _nTries = 5;
 
   private int _refreshRate = 60;
 
   private int _retryDelay = 5;
 
+  private int _fetchThreads = 0; // 0 = one thread per feed
+
   private List<Integer> _feedIds = Arrays.asList(1, 2, 11, 16, 21);
 
-  static {
-    _extensionRegistry = ExtensionRegistry.newInstance();
-    _extensionRegistry.add(GtfsRealtimeNYCT.nyctFeedHeader);
-    _extensionRegistry.add(GtfsRealtimeNYCT.nyctTripDescriptor);
-    _extensionRegistry.add(GtfsRealtimeNYCT.nyctStopTimeUpdate);
-  }
+  // Feeds with an outstanding fetch (including pending retries). These are not fetched again until it finishes.
+  private final Set<Integer> _feedsInFlight = ConcurrentHashMap.newKeySet();
+
+  // Latest output per feed, and the timestamp of the feed message it came from. Only accessed from the update thread.
+  private final Map<Integer, List<TripUpdate>> _tripUpdatesByFeed = new HashMap<>();
+
+  private final Map<Integer, Long> _timestampByFeed = new HashMap<>();
 
   @Inject
   public void setTripUpdatesSink(@TripUpdates GtfsRealtimeSink tripUpdatesSink) {
@@ -136,6 +152,11 @@ public class ProxyProvider {
     _retryDelay = retryDelay;
   }
 
+  @Inject(optional = true)
+  public void setFetchThreads(@Named("NYCT.fetchThreads") int fetchThreads) {
+    _fetchThreads = fetchThreads;
+  }
+
   @Inject
   public void setTripUpdateProcessor(TripUpdateProcessor processor) {
     _processor = processor;
@@ -146,9 +167,30 @@ public class ProxyProvider {
     _listener = listener;
   }
 
+  @Inject
+  public void setFeedReplayWarmup(FeedReplayWarmup warmup) {
+    _warmup = warmup;
+  }
+
   @PostConstruct
   public void start() {
     _httpClient = HttpClientBuilder.create().setConnectionManager(_connectionManager).build();
+    _fetchExecutor = Executors.newScheduledThreadPool(_fetchThreads > 0 ? _fetchThreads : _feedIds.size());
+    // Warm up on the update thread, so that warm-up cannot overlap a swap of reloaded GTFS, and is done before the
+    // first update.
+    if (_warmup != null) {
+      if (_scheduledExecutorService == null) {
+        _warmup.run();
+      } else {
+        try {
+          _scheduledExecutorService.submit(_warmup::run).get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          _log.error("Error warming up", e.getCause());
+        }
+      }
+    }
     if (_scheduledExecutorService != null)
       _updater = _scheduledExecutorService.scheduleWithFixedDelay(this::update, 0, _refreshRate, TimeUnit.SECONDS);
   }
@@ -159,21 +201,123 @@ public class ProxyProvider {
       _updater.cancel(false);
       _scheduledExecutorService.shutdown();
     }
+    _fetchExecutor.shutdownNow();
     _connectionManager.shutdown();
   }
 
   public void update() {
     _log.info("doing update");
 
-    GtfsRealtimeFullUpdate grfu = new GtfsRealtimeFullUpdate();
+    MatchMetrics totalMetrics = new MatchMetrics();
 
-    List<TripUpdate> tripUpdates = Lists.newArrayList();
+    // Fetch all feeds at once, so a cycle takes about as long as the slowest feed rather than the sum of all of them.
+    BlockingQueue<Optional<FeedFetch>> arrivals = new LinkedBlockingQueue<>();
+    int nFetches = 0;
+    for (int feedId : _feedIds) {
+      if (!_feedsInFlight.add(feedId)) {
+        _log.info("feed={} is still being retried, not fetching", feedId);
+        continue;
+      }
+      _fetchExecutor.execute(new FeedFetch(feedId, arrivals));
+      nFetches++;
+    }
 
-    MatchMetrics totalMetrics = new MatchMetrics();
+    // Each fetch reports back once after its first attempt: either the finished fetch, or empty if it is being retried.
+    // Process trip updates as each feed arrives. Feeds being retried keep their previous output until the retry finishes,
+    // or the output is too old to publish.
+    for (int i = 0; i < nFetches; i++) {
+      try {
+        arrivals.take().ifPresent(fetch -> processFeed(fetch, totalMetrics));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+
+    publish();
+
+    if (_listener != null)
+      _listener.reportMatchesTotal(totalMetrics, _processor.getCloudwatchNamespace());
+  }
+
+  private void processFeed(FeedFetch fetch, MatchMetrics totalMetrics) {
+    if (fetch.getPayload() == null) {
+      removeOutput(fetch.getFeedId());
+      return;
+    }
+    try {
+      _tripUpdatesByFeed.put(fetch.getFeedId(), _processor.processFeed(fetch.getFeedId(), fetch.getPayload(), totalMetrics));
+      _timestampByFeed.put(fetch.getFeedId(), readFeedHeader(fetch.getPayload()).getTimestamp());
+    } catch (Exception e) {
+      removeOutput(fetch.getFeedId());
+      e.printStackTrace();
+    }
+  }
+
+  private void removeOutput(int feedId) {
+    _tripUpdatesByFeed.remove(feedId);
+    _timestampByFeed.remove(feedId);
+  }
 
-    // For each feed ID, read in GTFS-RT, process trip updates, push to output.
+  // Write latest output of all feeds, in configured feed order. Output of a feed which is being retried is published
+  // again, but only until its feed message is older than the latency limit, past which a new message would be ignored.
+  private void publish() {
+    GtfsRealtimeFullUpdate grfu = new GtfsRealtimeFullUpdate();
+
+    int latencyLimit = _processor.getLatencyLimit();
+    long oldest = System.currentTimeMillis() / 1000 - latencyLimit;
+
+    int nTripUpdates = 0;
     for (int feedId : _feedIds) {
-      URI feedUrl;
+      Long timestamp = _timestampByFeed.get(feedId);
+      if (latencyLimit > 0 && timestamp != null && timestamp < oldest) {
+        _log.info("dropping output of feed={}, feed timestamp={} exceeds latency limit", feedId, timestamp);
+        removeOutput(feedId);
+      }
+      for (TripUpdate tu : _tripUpdatesByFeed.getOrDefault(feedId, Collections.emptyList())) {
+        FeedEntity.Builder feb = FeedEntity.newBuilder();
+        feb.setTripUpdate(tu);
+        feb.setId(tu.getTrip().getTripId());
+        grfu.addEntity(feb.build());
+        nTripUpdates++;
+      }
+    }
+
+    _log.info("writing {} total trip updates", nTripUpdates);
+
+    _tripUpdatesSink.handleFullUpdate(grfu);
+  }
+
+  // Delay before retry n (1-based): exponential in n, with jitter so retries of several feeds do not line up.
+  // Never longer than one refresh period.
+  private long retryDelayMillis(int retry) {
+    long delay = Math.min(_retryDelay * 1000L << Math.min(retry - 1, 16), _refreshRate * 1000L);
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+
+  /**
+   * Fetch of a single feed, run on the fetch pool. Empty or failed fetches are retried as timed tasks
+   * rather than by sleeping, so a bad feed holds up neither other feeds nor the published output.
+   */
+  private class FeedFetch implements Runnable {
+
+    private final int _feedId;
+
+    private final HttpGet _get;
+
+    // cycle which started this fetch; null once the fetch has reported to it.
+    private BlockingQueue<Optional<FeedFetch>> _cycle;
+
+    private int _tries = 0;
+
+    // Serialized FeedMessage. Only checked here; it is parsed by TripUpdateProcessor if it needs to be processed.
+    private byte[] _payload = null;
+
+    private boolean _hasEntities = false;
+
+    FeedFetch(int feedId, BlockingQueue<Optional<FeedFetch>> cycle) {
+      _feedId = feedId;
+      _cycle = cycle;
 
       try {
         URIBuilder ub = new URIBuilder("http://datamine.mta.info/mta_esi.php");
@@ -181,52 +325,71 @@ public class ProxyProvider {
         ub.addParameter("key", _key);
         ub.addParameter("feed_id", Integer.toString(feedId));
 
-        feedUrl = ub.build();
+        _get = new HttpGet(ub.build());
       } catch (URISyntaxException ex) {
         throw new RuntimeException(ex);
       }
+    }
+
+    int getFeedId() {
+      return _feedId;
+    }
+
+    byte[] getPayload() {
+      return _payload;
+    }
+
+    @Override
+    public void run() {
+      // nothing from an earlier attempt is kept if this one fails
+      _payload = null;
+      _hasEntities = false;
+      try (CloseableHttpResponse response = _httpClient.execute(_get)) {
+        byte[] payload = EntityUtils.toByteArray(response.getEntity());
+        _hasEntities = hasEntities(payload);
+        _payload = payload;
+      } catch (Exception e) {
+        _log.error("Error parsing protocol buffer for feed={}. try={}, retry={}. Error={}",
+                _feedId, _tries, _tries + 1 < _nTries, e.getMessage());
+      }
+      _tries++;
+
+      boolean success = _payload != null && _hasEntities;
+      boolean done = success || _tries >= _nTries;
+      if (done)
+        _feedsInFlight.remove(_feedId);
 
-      HttpGet get = new HttpGet(feedUrl);
+      BlockingQueue<Optional<FeedFetch>> cycle = _cycle;
+      _cycle = null;
 
-      FeedMessage message = null;
-      for (int tries = 0; tries < _nTries; tries++) {
+      if (cycle != null) {
+        cycle.add(done ? Optional.of(this) : Optional.empty());
+      } else if (done && _scheduledExecutorService != null) {
+        // Retry finished after its cycle was published: process on the update thread and publish again. The cycle's
+        // total has already been reported, so report this feed's matches as a total of their own.
         try {
-          CloseableHttpResponse response = _httpClient.execute(get);
-          try (InputStream streamContent = response.getEntity().getContent()) {
-           message = FeedMessage.parseFrom(streamContent, _extensionRegistry);
-           if (!message.getEntityList().isEmpty())
-            break;
-           Thread.sleep(_retryDelay * 1000);
-          }
-        } catch (Exception e) {
-          _log.error("Error parsing protocol buffer for feed={}. try={}, retry={}. Error={}",
-                  feedId, tries, tries < _nTries, e.getMessage());
+          _scheduledExecutorService.execute(() -> {
+            MatchMetrics retryMetrics = new MatchMetrics();
+            processFeed(this, retryMetrics);
+            publish();
+            if (_listener != null)
+              _listener.reportMatchesTotal(retryMetrics, _processor.getCloudwatchNamespace());
+          });
+        } catch (RejectedExecutionException e) {
+          // shutting down
         }
       }
 
-      if (message != null) {
+      if (!done) {
+        long delay = retryDelayMillis(_tries);
+        _log.info("retrying feed={} in {}ms", _feedId, delay);
         try {
-          tripUpdates.addAll(_processor.processFeed(feedId, message, totalMetrics));
-        } catch (Exception e) {
-          e.printStackTrace();
+          _fetchExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          // shutting down
         }
       }
     }
-
-    for (TripUpdate tu : tripUpdates) {
-      FeedEntity.Builder feb = FeedEntity.newBuilder();
-      feb.setTripUpdate(tu);
-      feb.setId(tu.getTrip().getTripId());
-      grfu.addEntity(feb.build());
-    }
-
-    _log.info("writing {} total trip updates", tripUpdates.size());
-
-    _tripUpdatesSink.handleFullUpdate(grfu);
-
-    if (_listener != null)
-      _listener.reportMatchesTotal(totalMetrics, _processor.getCloudwatchNamespace());
   }
 
-
 }
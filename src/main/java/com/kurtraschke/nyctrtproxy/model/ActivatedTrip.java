@@ -17,7 +17,6 @@ package com.kurtraschke.nyctrtproxy.model;
 
 import com.google.transit.realtime.GtfsRealtimeNYCT.TripReplacementPeriod;
 import com.google.transit.realtime.GtfsRealtime.TimeRange;
-import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.slf4j.Logger;
@@ -35,21 +34,15 @@ public class ActivatedTrip {
   private static Logger _log = LoggerFactory.getLogger(ActivatedTrip.class);
 
   private final ServiceDate sd;
-  private final Trip theTrip;
-  private final NyctTripId parsedTripId;
+  private final StaticTrip staticTrip;
   private long start;
   private long end;
-  private List<StopTime> stopTimes;
 
-  public ActivatedTrip(ServiceDate sd, Trip theTrip, List<StopTime> stopTimes) {
+  public ActivatedTrip(ServiceDate sd, StaticTrip staticTrip) {
     this.sd = sd;
-    this.theTrip = theTrip;
-    this.parsedTripId = stopTimes.isEmpty() ? null : NyctTripId.buildFromGtfs(theTrip, stopTimes);
-    int startSec = stopTimes.isEmpty() ? -1 : stopTimes.get(0).getDepartureTime();
-    int endSec = stopTimes.isEmpty() ? -1 : stopTimes.get(stopTimes.size() - 1).getArrivalTime();
-    this.start = sd.getAsDate().getTime()/1000 + startSec;
-    this.end = sd.getAsDate().getTime()/1000 + endSec;
-    this.stopTimes = stopTimes;
+    this.staticTrip = staticTrip;
+    this.start = sd.getAsDate().getTime()/1000 + staticTrip.getStartTime();
+    this.end = sd.getAsDate().getTime()/1000 + staticTrip.getEndTime();
   }
 
   public ServiceDate getServiceDate() {
@@ -57,11 +50,15 @@ public class ActivatedTrip {
   }
 
   public Trip getTrip() {
-    return theTrip;
+    return staticTrip.getTrip();
+  }
+
+  public StaticTrip getStaticTrip() {
+    return staticTrip;
   }
 
   public NyctTripId getParsedTripId() {
-    return parsedTripId;
+    return staticTrip.getParsedTripId();
   }
 
   public long getEnd() {
@@ -72,8 +69,8 @@ public class ActivatedTrip {
     return start;
   }
 
-  public List<StopTime> getStopTimes() {
-    return stopTimes;
+  public List<String> getStopIds() {
+    return staticTrip.getStopIds();
   }
 
   public boolean activeFor(TripReplacementPeriod trp, long timestamp) {
@@ -85,7 +82,7 @@ public class ActivatedTrip {
 
   @Override
   public String toString() {
-    return "ActivatedTrip{" + "sd=" + sd + ", theTrip=" + theTrip + '}';
+    return "ActivatedTrip{" + "sd=" + sd + ", theTrip=" + getTrip() + '}';
   }
 
 }
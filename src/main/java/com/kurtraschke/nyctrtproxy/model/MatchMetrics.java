@@ -62,6 +62,38 @@ public class MatchMetrics {
     }
   }
 
+  /**
+   * Add metrics aggregated elsewhere (for instance, for a single feed) to currently aggregated metrics.
+   *
+   * Latency is not added.
+   *
+   * @param other The metrics to add
+   */
+  public void add(MatchMetrics other) {
+    nRecordsIn += other.nRecordsIn;
+    nExpiredUpdates += other.nExpiredUpdates;
+    nMatchedTrips += other.nMatchedTrips;
+    nCancelledTrips += other.nCancelledTrips;
+    nAddedTrips += other.nAddedTrips;
+    nUnmatchedNoStartDate += other.nUnmatchedNoStartDate;
+    nStrictMatch += other.nStrictMatch;
+    nLooseMatchSameDay += other.nLooseMatchSameDay;
+    nLooseMatchOtherDay += other.nLooseMatchOtherDay;
+    nUnmatchedNoStopMatch += other.nUnmatchedNoStopMatch;
+    nLooseMatchCoercion += other.nLooseMatchCoercion;
+    nDuplicates += other.nDuplicates;
+    nBadId += other.nBadId;
+    nMergedTrips += other.nMergedTrips;
+    nMultipleMatchedTrips += other.nMultipleMatchedTrips;
+    nTotalStopTimeUpdatesForAddedTrips += other.nTotalStopTimeUpdatesForAddedTrips;
+    nTotalStopTimeUpdatesForMatchedTrips += other.nTotalStopTimeUpdatesForMatchedTrips;
+    for (String tripId : other.tripIds) {
+      if (!tripIds.add(tripId)) {
+        nDuplicates++;
+      }
+    }
+  }
+
   public void addStatus(Status status){
     switch (status) {
       case BAD_TRIP_ID:
@@ -19,86 +19,158 @@ import com.google.transit.realtime.GtfsRealtime;
 import org.apache.commons.lang3.StringUtils;
 import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * GTFS or realtime trip identifier broken into constituent parts; most importantly, route, direction, and origin-departure time.
  *
  * Origin-departure time is encoded as hundredths of a minute after midnight.
  *
+ * Route, direction, origin-departure time, and network are packed into a single long (see {@link #getKey}), so trip
+ * IDs can be compared and hashed without comparing strings. Route and network IDs are numbered by a {@link Names}
+ * table, which belongs to one load of static data. Static trip IDs add their IDs to the table. Realtime trip IDs only
+ * look IDs up: an ID which is not in static data gets a number which never matches, so realtime input cannot fill the
+ * table. Trip IDs only match trip IDs numbered by the same table.
+ *
+ * Trip IDs are parsed by hand. Realtime trip IDs are parsed as by the regular expression
+ * <pre>([A-Z0-9]+_)?(?&lt;originDepartureTime&gt;[0-9-]{6})_?(?&lt;route&gt;[A-Z0-9]+)\.+(?&lt;direction&gt;[NS])(?&lt;network&gt;[A-Z0-9]*)$</pre>
+ * and path IDs of static trips as by
+ * <pre>(?&lt;route&gt;[A-Z0-9]+)\.+(?&lt;direction&gt;[NS])(?&lt;network&gt;[A-Z0-9]*)$</pre>
+ * using {@link java.util.regex.Matcher#find}.
+ *
  * @author kurt
  */
 public class NyctTripId {
 
-  private static final Pattern _rtTripPattern = Pattern.compile(
-          "([A-Z0-9]+_)?(?<originDepartureTime>[0-9-]{6})_?(?<route>[A-Z0-9]+)\\.+(?<direction>[NS])(?<network>[A-Z0-9]*)$");
+  public static final int MAX_NAMES = 1 << 15;
+
+  // number of a route or network ID which is not in the table; the largest that fits in the network bits
+  private static final int UNKNOWN = MAX_NAMES - 1;
+
+  // key layout: route (16 bits) | network (15 bits) | direction (1 bit) | origin-departure time (32 bits)
+  private static final int ROUTE_SHIFT = 48;
+  private static final int NETWORK_SHIFT = 33;
+  private static final long DIRECTION_BIT = 1L << 32;
+  private static final long ODT_MASK = 0xFFFFFFFFL;
+  private static final long NETWORK_MASK = (long) (MAX_NAMES - 1) << NETWORK_SHIFT;
+  private static final long ROUTE_DIRECTION_MASK = (0xFFFFL << ROUTE_SHIFT) | DIRECTION_BIT;
+  private static final long LOOSE_MATCH_MASK = ROUTE_DIRECTION_MASK | ODT_MASK;
+
+  private static final int ONE_DAY = 24 * 60 * 100;
+
+  // table with no names, for realtime trip IDs parsed without static data
+  private static final Names NO_NAMES = new Names();
 
-  private static final Pattern _staticTripPattern = Pattern.compile(
-          "(?<route>[A-Z0-9]+)\\.+(?<direction>[NS])(?<network>[A-Z0-9]*)$"
-  );
+  private final Names names;
 
-  private static final Logger _log = LoggerFactory.getLogger(NyctTripId.class);
+  private long key;
+
+  // Route and direction as given in the trip ID, from which pathId is computed on first use. -1 if pathId was given.
+  private final int pathKey;
 
-  private int originDepartureTime;
   private String pathId;
-  private String directionId;
-  private String routeId;
-  private String networkId;
+
+  // route and network IDs which are not in names; only realtime trip IDs have these
+  private String unknownRouteId;
+  private final String unknownNetworkId;
 
   public int getOriginDepartureTime() {
-    return originDepartureTime;
+    return (int) key;
   }
 
   public String getPathId() {
+    if (pathId == null && pathKey >= 0)
+      pathId = pathId(names.get(pathKey >> 1), pathKey & 1);
     return pathId;
   }
 
   public String getDirection() {
-    return directionId;
+    return direction((key & DIRECTION_BIT) != 0 ? 1 : 0);
   }
 
   public String getRouteId() {
-    return routeId;
+    int route = routeIndex();
+    return route == UNKNOWN ? unknownRouteId : names.get(route);
   }
 
   public String getNetworkId() {
-    return networkId;
+    int network = networkIndex();
+    return network == UNKNOWN ? unknownNetworkId : names.get(network);
   }
 
+  /**
+   * @return route, direction, origin-departure time, and network, packed into a long. Keys of trip IDs numbered by
+   * different tables are not comparable.
+   */
+  public long getKey() {
+    return key;
+  }
+
+  /**
+   * @return table which numbers route and network IDs of this trip ID
+   */
+  public Names getNames() {
+    return names;
+  }
+
+  private int routeIndex() {
+    return (int) (key >>> ROUTE_SHIFT);
+  }
+
+  private int networkIndex() {
+    return (int) ((key & NETWORK_MASK) >>> NETWORK_SHIFT);
+  }
 
   /**
    * Parse a trip ID (from static GTFS or realtime feed) into NyctTripId
    *
    * @param tripId the trip ID
+   * @param names table of route and network IDs
+   * @param add true to add unknown IDs to names (static data), false to give them the unknown number (realtime)
    * @return parsed trip ID
    */
-  private static NyctTripId buildFromString(String tripId) {
-    int originDepartureTime;
-    String pathId, routeId, directionId, networkId;
-
-    Matcher matcher = _rtTripPattern.matcher(tripId);
-
-    if (matcher.find()) {
-      originDepartureTime = Integer.parseInt(matcher.group("originDepartureTime"), 10);
-      pathId = StringUtils.rightPad(matcher.group("route"), 3, '.') + matcher.group("direction");
-      routeId = matcher.group("route");
-      directionId = matcher.group("direction");
-      networkId = matcher.group("network");
-      if (networkId.length() == 0)
-        networkId = null;
-      return new NyctTripId(originDepartureTime, pathId, routeId, directionId, networkId);
-
-    } else {
+  private static NyctTripId buildFromString(String tripId, Names names, boolean add) {
+    int end = matchEnd(tripId);
+    int dot = directionDot(tripId, end);
+    if (dot < 0)
+      return null;
+    int routeEnd = dotsStart(tripId, dot);
+    int routeStart = idCharsStart(tripId, routeEnd);
+    if (routeStart == routeEnd)
       return null;
-    }
 
+    // Find the leftmost match: at each start position, try with the prefix first, then without.
+    for (int p = 0; p + 6 < routeEnd; p++) {
+      int q = p;
+      while (q < end && isIdChar(tripId.charAt(q)))
+        q++;
+      int odtStart;
+      if (q > p && q < end && tripId.charAt(q) == '_' && odtAt(tripId, q + 1, routeStart, routeEnd))
+        odtStart = q + 1;
+      else if (odtAt(tripId, p, routeStart, routeEnd))
+        odtStart = p;
+      else
+        continue;
+
+      int pathRouteStart = tripId.charAt(odtStart + 6) == '_' ? odtStart + 7 : odtStart + 6;
+      int originDepartureTime = parseOdt(tripId, odtStart);
+      int route = names.indexOf(tripId, pathRouteStart, routeEnd, add);
+      int direction = tripId.charAt(dot + 1) == 'S' ? 1 : 0;
+      int network = dot + 2 == end ? 0 : names.indexOf(tripId, dot + 2, end, add);
+      String unknownRouteId = route == UNKNOWN ? tripId.substring(pathRouteStart, routeEnd) : null;
+      String unknownNetworkId = network == UNKNOWN ? tripId.substring(dot + 2, end) : null;
+      long key = pack(originDepartureTime, route, direction, network);
+      if (route == UNKNOWN)
+        return new NyctTripId(names, key, -1, pathId(unknownRouteId, direction), unknownRouteId, unknownNetworkId);
+      return new NyctTripId(names, key, (route << 1) | direction, null, null, unknownNetworkId);
+    }
+    return null;
   }
 
   /**
@@ -107,12 +179,13 @@ public class NyctTripId {
    * This is necessary because route W static trip IDs have "N" in the typical 'route' position.
    *
    * @param trip GTFS static trip
+   * @param names table of route and network IDs of the static data, to which the trip's IDs are added
    * @return parsed trip ID
    */
-  public static NyctTripId buildFromTrip(Trip trip) {
-    NyctTripId id = buildFromString(trip.getId().getId());
+  public static NyctTripId buildFromTrip(Trip trip, Names names) {
+    NyctTripId id = buildFromString(trip.getId().getId(), names, true);
     if (id != null)
-      id.routeId = trip.getRoute().getId().getId();
+      id.setRouteId(trip.getRoute().getId().getId(), true);
     return id;
   }
 
@@ -120,30 +193,35 @@ public class NyctTripId {
    /**
     * Build a NyctTripId from a trip and stop times - we cannot count on tripIds in ATIS GTFS
     */
-   public static NyctTripId buildFromGtfs(Trip trip, List<StopTime> stopTimes) {
+   public static NyctTripId buildFromGtfs(Trip trip, List<StopTime> stopTimes, Names names) {
      int originDepartureTime = (stopTimes.get(0).getDepartureTime() * 100) / 60;
      String pathId = trip.getMtaTripId();
-     String routeId = trip.getRoute().getId().getId();
-     String directionId = trip.getDirectionId().equals("0") ? "N" : "S";
-     String networkId = null;
+     int route = names.indexOf(trip.getRoute().getId().getId(), true);
+     int direction = trip.getDirectionId().equals("0") ? 0 : 1;
+     int network = 0;
+     int pathKey = -1;
      if (pathId != null) {
-       Matcher matcher = _staticTripPattern.matcher(pathId);
-       if (matcher.find()) {
-         networkId = matcher.group("network");
-       } else throw new IllegalArgumentException("bad path ID");
+       int end = matchEnd(pathId);
+       int dot = directionDot(pathId, end);
+       int routeEnd = dot < 0 ? -1 : dotsStart(pathId, dot);
+       if (dot < 0 || idCharsStart(pathId, routeEnd) == routeEnd)
+         throw new IllegalArgumentException("bad path ID");
+       // network is "" rather than null if the path ID has none
+       network = names.indexOf(pathId, dot + 2, end, true);
      } else {
        // for tests- may as well check the trip ID as per non-ATIS GTFS
-       NyctTripId other = buildFromString(trip.getId().getId());
+       NyctTripId other = buildFromString(trip.getId().getId(), names, true);
        if (other != null) {
-         pathId = other.pathId;
-         networkId = other.networkId;
+         pathKey = other.pathKey;
+         network = other.networkIndex();
        }
      }
-     return new NyctTripId(originDepartureTime, pathId, routeId, directionId, networkId);
+     return new NyctTripId(names, pack(originDepartureTime, route, direction, network), pathKey, pathId, null, null);
    }
 
   /**
-   * Build a NyctTripId from a TripDescriptor
+   * Build a NyctTripId from a TripDescriptor, without static data. The trip ID has route, direction and
+   * origin-departure time, but does not match any static trip ID.
    *
    * This is necessary because route 6X realtime trip IDs have "6" in the typical 'route' position.
    *
@@ -151,47 +229,96 @@ public class NyctTripId {
    * @return parsed trip ID
    */
   public static NyctTripId buildFromTripDescriptor(GtfsRealtime.TripDescriptorOrBuilder td) {
-    return buildFromTripDescriptor(td, Collections.emptySet());
+    return buildFromTripDescriptor(td, Collections.emptySet(), NO_NAMES);
   }
 
-  public static NyctTripId buildFromTripDescriptor(GtfsRealtime.TripDescriptorOrBuilder td, Set<String> reverseDirectionsRoutes) {
-    NyctTripId id = buildFromString(td.getTripId());
+  public static NyctTripId buildFromTripDescriptor(GtfsRealtime.TripDescriptorOrBuilder td, Set<String> reverseDirectionsRoutes,
+                                                   Names names) {
+    return buildFromTripId(td.getTripId(), td.hasRouteId() ? td.getRouteId() : null, reverseDirectionsRoutes, names);
+  }
+
+  /**
+   * Build a NyctTripId from a realtime trip ID and the route ID of its TripDescriptor, without static data.
+   *
+   * @see #buildFromTripId(String, String, Set, Names)
+   */
+  public static NyctTripId buildFromTripId(String tripId, String routeId, Set<String> reverseDirectionsRoutes) {
+    return buildFromTripId(tripId, routeId, reverseDirectionsRoutes, NO_NAMES);
+  }
+
+  /**
+   * Build a NyctTripId from a realtime trip ID and the route ID of its TripDescriptor.
+   *
+   * @param tripId GTFS-RT trip ID
+   * @param routeId route ID to use instead of the one in the trip ID, or null
+   * @param reverseDirectionsRoutes routes with reversed realtime directions
+   * @param names table of route and network IDs of the static data to match against; it is not modified
+   * @return parsed trip ID
+   */
+  public static NyctTripId buildFromTripId(String tripId, String routeId, Set<String> reverseDirectionsRoutes,
+                                           Names names) {
+    NyctTripId id = buildFromString(tripId, names, false);
     if (id != null) {
-      if (td.hasRouteId()) {
-        id.routeId = td.getRouteId();
+      if (routeId != null) {
+        id.setRouteId(routeId, false);
       }
-      if (reverseDirectionsRoutes.contains(id.routeId)) {
-        id.directionId = id.directionId.equals("N") ? "S" : "N";
+      if (reverseDirectionsRoutes.contains(id.getRouteId())) {
+        id.key ^= DIRECTION_BIT;
       }
     }
     return id;
   }
 
-  private NyctTripId(int originDepartureTime, String pathId, String routeId, String directionId, String networkId) {
-    this.originDepartureTime = originDepartureTime;
+  private NyctTripId(Names names, long key, int pathKey, String pathId, String unknownRouteId, String unknownNetworkId) {
+    this.names = names;
+    this.key = key;
+    this.pathKey = pathKey;
     this.pathId = pathId;
-    this.routeId = routeId;
-    this.directionId = directionId;
-    this.networkId = networkId;
+    this.unknownRouteId = unknownRouteId;
+    this.unknownNetworkId = unknownNetworkId;
+  }
+
+  private void setRouteId(String routeId, boolean add) {
+    int route = names.indexOf(routeId, add);
+    unknownRouteId = route == UNKNOWN ? routeId : null;
+    key = (key & ~(0xFFFFL << ROUTE_SHIFT)) | ((long) route << ROUTE_SHIFT);
   }
 
   @Override
   public String toString() {
-    return String.format("%06d_%s", originDepartureTime, pathId);
+    // same as String.format("%06d_%s", originDepartureTime, pathId)
+    int originDepartureTime = getOriginDepartureTime();
+    String digits = Long.toString(Math.abs((long) originDepartureTime));
+    StringBuilder sb = new StringBuilder(20);
+    if (originDepartureTime < 0)
+      sb.append('-');
+    for (int i = sb.length() + digits.length(); i < 6; i++)
+      sb.append('0');
+    return sb.append(digits).append('_').append(getPathId()).toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof NyctTripId))
+      return false;
+    NyctTripId other = (NyctTripId) o;
+    return key == other.key && names == other.names && Objects.equals(unknownRouteId, other.unknownRouteId)
+            && Objects.equals(unknownNetworkId, other.unknownNetworkId);
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(key);
   }
 
   /**
    * Check route, direction, and network ID match. Note only Feed 1 has IDs which *may* have network ID.
    *
-   * This method throws an exception if {@link #networkId} is null.
-   *
    * @param other
    * @return true if match, false otherwise
    */
   public boolean strictMatch(NyctTripId other) {
-    return  looseMatch(other)
-            && networkId != null
-            && getNetworkId().equals(other.getNetworkId());
+    return key == other.key && networkIndex() != 0 && networkIndex() != UNKNOWN && comparable(other);
   }
 
   /**
@@ -201,8 +328,7 @@ public class NyctTripId {
    * @return true if match, false otherwise
    */
   public boolean looseMatch(NyctTripId other) {
-    return routeDirMatch(other)
-            && getOriginDepartureTime() == other.getOriginDepartureTime();
+    return (key & LOOSE_MATCH_MASK) == (other.key & LOOSE_MATCH_MASK) && comparable(other);
   }
 
   /**
@@ -212,8 +338,12 @@ public class NyctTripId {
    * @return true if match, false otherwise
    */
   public boolean routeDirMatch(NyctTripId other) {
-    return getRouteId().equals(other.getRouteId())
-            && getDirection().equals(other.getDirection());
+    return (key & ROUTE_DIRECTION_MASK) == (other.key & ROUTE_DIRECTION_MASK) && comparable(other);
+  }
+
+  // Route numbers mean the same thing, and are not the unknown number, which never matches.
+  private boolean comparable(NyctTripId other) {
+    return names == other.names && routeIndex() != UNKNOWN;
   }
 
   /**
@@ -222,7 +352,156 @@ public class NyctTripId {
    * @return new trip ID
    */
   public NyctTripId relativeToPreviousDay() {
-    int time = originDepartureTime + (24 * 60 * 100);
-    return new NyctTripId(time, pathId, routeId, directionId, networkId);
+    int time = getOriginDepartureTime() + ONE_DAY;
+    return new NyctTripId(names, (key & ~ODT_MASK) | (time & ODT_MASK), pathKey, pathId, unknownRouteId,
+            unknownNetworkId);
+  }
+
+  private static String pathId(String routeId, int direction) {
+    return StringUtils.rightPad(routeId, 3, '.') + direction(direction);
+  }
+
+  private static long pack(int originDepartureTime, int route, int direction, int network) {
+    return ((long) route << ROUTE_SHIFT)
+            | ((long) network << NETWORK_SHIFT)
+            | (direction == 1 ? DIRECTION_BIT : 0)
+            | (originDepartureTime & ODT_MASK);
+  }
+
+  private static String direction(int direction) {
+    return direction == 1 ? "S" : "N";
+  }
+
+  private static boolean isIdChar(char c) {
+    return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+  }
+
+  private static boolean isOdtChar(char c) {
+    return (c >= '0' && c <= '9') || c == '-';
+  }
+
+  // Position at which the match must end. Like $, this is before a line terminator at the end of the input.
+  private static int matchEnd(String s) {
+    int end = s.length();
+    if (end >= 2 && s.charAt(end - 2) == '\r' && s.charAt(end - 1) == '\n')
+      return end - 2;
+    if (end >= 1) {
+      char c = s.charAt(end - 1);
+      if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+        return end - 1;
+    }
+    return end;
+  }
+
+  // Position of the dot before direction and network, i.e. s[dot+1..end) is [NS][A-Z0-9]*. -1 if there is none.
+  private static int directionDot(String s, int end) {
+    int i = idCharsStart(s, end);
+    if (i == 0 || i == end || s.charAt(i - 1) != '.')
+      return -1;
+    char direction = s.charAt(i);
+    return direction == 'N' || direction == 'S' ? i - 1 : -1;
+  }
+
+  // Start of the run of dots ending at dot
+  private static int dotsStart(String s, int dot) {
+    int i = dot;
+    while (i > 0 && s.charAt(i - 1) == '.')
+      i--;
+    return i;
+  }
+
+  // Start of the run of [A-Z0-9] ending before end
+  private static int idCharsStart(String s, int end) {
+    int i = end;
+    while (i > 0 && isIdChar(s.charAt(i - 1)))
+      i--;
+    return i;
+  }
+
+  // Check whether an origin-departure time at position i can be followed by the route s[routeStart..routeEnd).
+  private static boolean odtAt(String s, int i, int routeStart, int routeEnd) {
+    if (i + 6 >= routeEnd)
+      return false;
+    for (int j = i; j < i + 6; j++) {
+      if (!isOdtChar(s.charAt(j)))
+        return false;
+    }
+    int route = s.charAt(i + 6) == '_' ? i + 7 : i + 6;
+    return route >= routeStart && route < routeEnd;
+  }
+
+  // Same result, and same exceptions, as Integer.parseInt
+  private static int parseOdt(String s, int i) {
+    boolean negative = s.charAt(i) == '-';
+    int value = 0;
+    for (int j = negative ? i + 1 : i; j < i + 6; j++) {
+      char c = s.charAt(j);
+      if (c == '-')
+        return Integer.parseInt(s.substring(i, i + 6), 10);
+      value = value * 10 + (c - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Route and network IDs of one load of static data, numbered from 1 in order of appearance. 0 stands for null.
+   * Only static trip IDs add names; see {@link NyctTripId}. A new table is built for each load of static data.
+   */
+  public static final class Names {
+
+    private final int capacity;
+
+    // name -> number and number -> name; a name's number is published before the name, so it can always be looked up
+    private final ConcurrentMap<String, Integer> numbers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<>();
+
+    public Names() {
+      this(UNKNOWN - 1);
+    }
+
+    /**
+     * @param capacity most route and network IDs the table holds, no more than {@link #MAX_NAMES} - 2
+     */
+    public Names(int capacity) {
+      if (capacity < 0 || capacity > UNKNOWN - 1)
+        throw new IllegalArgumentException("bad capacity " + capacity);
+      this.capacity = capacity;
+    }
+
+    /**
+     * @return number of route and network IDs in the table
+     */
+    public int size() {
+      return names.size();
+    }
+
+    private String get(int index) {
+      return index == 0 ? null : names.get(index);
+    }
+
+    private int indexOf(String name, boolean add) {
+      return name == null ? 0 : indexOf(name, 0, name.length(), add);
+    }
+
+    // number of s[start..end); if it is not in the table, add it, or return UNKNOWN if add is false
+    private int indexOf(String s, int start, int end, boolean add) {
+      String name = s.substring(start, end);
+      Integer index = numbers.get(name);
+      if (index != null)
+        return index;
+      return add ? add(name) : UNKNOWN;
+    }
+
+    private synchronized int add(String name) {
+      Integer index = numbers.get(name);
+      if (index != null)
+        return index;
+      index = names.size() + 1;
+      if (index > capacity)
+        throw new IllegalStateException("too many distinct route and network IDs in static trip IDs");
+      names.put(index, name);
+      numbers.put(name, index);
+      return index;
+    }
   }
 }
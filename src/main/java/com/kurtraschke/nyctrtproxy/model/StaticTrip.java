@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import org.onebusaway.gtfs.model.Trip;
+
+import java.util.List;
+
+/**
+ * Static GTFS trip along with its stop times, parsed ID, and stop pattern, computed once when static data is loaded.
+ *
+ * Stop times are a view of rows of a {@link StopTimeTable} shared by all trips: stop time i of this trip has its stop
+ * at position i of the pattern, and its times in row (offset + i) of the table.
+ */
+public class StaticTrip {
+
+  private final Trip trip;
+  private final StopTimeTable stopTimes;
+  private final int offset; // row of first stop time in stopTimes
+  private final NyctTripId parsedTripId;
+  private final int serviceIndex; // dense index of trip's service ID, see StaticTripIndex#getActiveServices
+  private final int startTime; // first departure, seconds into service day
+  private final int endTime; // last arrival, seconds into service day
+  private final StopPattern pattern;
+
+  public StaticTrip(Trip trip, StopTimeTable stopTimes, int offset, NyctTripId parsedTripId, int serviceIndex,
+                    StopPattern pattern) {
+    int nStops = pattern.getStopSequence().length;
+    if (nStops == 0)
+      throw new IllegalArgumentException("trip has no stop times: " + trip.getId());
+    this.trip = trip;
+    this.stopTimes = stopTimes;
+    this.offset = offset;
+    this.parsedTripId = parsedTripId;
+    this.serviceIndex = serviceIndex;
+    this.startTime = stopTimes.getDepartureTime(offset);
+    this.endTime = stopTimes.getArrivalTime(offset + nStops - 1);
+    this.pattern = pattern;
+  }
+
+  public Trip getTrip() {
+    return trip;
+  }
+
+  public int getStopCount() {
+    return pattern.getStopSequence().length;
+  }
+
+  /**
+   * @param i index of stop time in trip
+   * @return arrival time, seconds into service day
+   */
+  public int getArrivalTime(int i) {
+    return stopTimes.getArrivalTime(offset + checkIndex(i));
+  }
+
+  /**
+   * @param i index of stop time in trip
+   * @return departure time, seconds into service day
+   */
+  public int getDepartureTime(int i) {
+    return stopTimes.getDepartureTime(offset + checkIndex(i));
+  }
+
+  public NyctTripId getParsedTripId() {
+    return parsedTripId;
+  }
+
+  public int getServiceIndex() {
+    return serviceIndex;
+  }
+
+  public int getStartTime() {
+    return startTime;
+  }
+
+  public int getEndTime() {
+    return endTime;
+  }
+
+  public StopPattern getPattern() {
+    return pattern;
+  }
+
+  public List<String> getStopIds() {
+    return pattern.getStopIds();
+  }
+
+  private int checkIndex(int i) {
+    if (i < 0 || i >= getStopCount())
+      throw new IndexOutOfBoundsException("stop time " + i + " of " + getStopCount());
+    return i;
+  }
+
+  @Override
+  public String toString() {
+    return "StaticTrip{" + "trip=" + trip + '}';
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sequence of stops visited by a static trip. Trips with the same stops share a single pattern.
+ */
+public class StopPattern {
+
+  private final int index;
+  private final int[] stopSequence;
+  private final List<String> stopIds;
+  private final Set<String> stopIdSet;
+
+  public StopPattern(int index, int[] stopSequence, List<String> stopIds) {
+    this.index = index;
+    this.stopSequence = stopSequence;
+    this.stopIds = ImmutableList.copyOf(stopIds);
+    this.stopIdSet = ImmutableSet.copyOf(stopIds);
+  }
+
+  /**
+   * @return dense index of this pattern, unique among patterns of the same static data
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return stop indexes, see StaticTripIndex#getStopSequence
+   */
+  public int[] getStopSequence() {
+    return stopSequence;
+  }
+
+  public List<String> getStopIds() {
+    return stopIds;
+  }
+
+  public boolean containsStop(String stopId) {
+    return stopIdSet.contains(stopId);
+  }
+
+  /**
+   * Check whether this pattern ends with the given stops, i.e. a vehicle which has the given stops left to visit
+   * could be running a trip with this pattern.
+   *
+   * @param stops stop indexes, see StaticTripIndex#getStopSequence
+   * @return true if the given stops are a suffix of this pattern's stops
+   */
+  public boolean endsWith(int[] stops) {
+    int offset = stopSequence.length - stops.length;
+    if (offset < 0)
+      return false;
+    for (int i = 0; i < stops.length; i++) {
+      if (stopSequence[offset + i] != stops[i])
+        return false;
+    }
+    return true;
+  }
+}
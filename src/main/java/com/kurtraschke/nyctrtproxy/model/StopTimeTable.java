@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import org.onebusaway.gtfs.model.StopTime;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Arrival and departure times of all static trips, stored as columns. Each trip's stop times are a contiguous range of
+ * rows, see {@link StaticTrip}. Stops are not stored here; they are in the trip's {@link StopPattern}.
+ *
+ * Rows are only added while static data is being indexed; after that the table is read-only.
+ *
+ * @author Simon Jacobs
+ */
+public class StopTimeTable {
+
+  private int[] arrivals = new int[1024];
+  private int[] departures = new int[1024];
+  private int size = 0;
+
+  /**
+   * Add a trip's stop times.
+   *
+   * @param stopTimes stop times of trip, in order
+   * @return row of the first stop time
+   */
+  public int add(List<StopTime> stopTimes) {
+    int offset = size;
+    if (size + stopTimes.size() > arrivals.length) {
+      int capacity = Math.max(arrivals.length * 2, size + stopTimes.size());
+      arrivals = Arrays.copyOf(arrivals, capacity);
+      departures = Arrays.copyOf(departures, capacity);
+    }
+    for (StopTime stopTime : stopTimes) {
+      arrivals[size] = stopTime.getArrivalTime();
+      departures[size] = stopTime.getDepartureTime();
+      size++;
+    }
+    return offset;
+  }
+
+  /**
+   * Release spare capacity once all trips have been added.
+   */
+  public void trimToSize() {
+    arrivals = Arrays.copyOf(arrivals, size);
+    departures = Arrays.copyOf(departures, size);
+  }
+
+  /**
+   * @param row row of stop time
+   * @return arrival time, seconds into service day
+   */
+  public int getArrivalTime(int row) {
+    return arrivals[row];
+  }
+
+  /**
+   * @param row row of stop time
+   * @return departure time, seconds into service day
+   */
+  public int getDepartureTime(int row) {
+    return departures[row];
+  }
+
+  public int size() {
+    return size;
+  }
+}
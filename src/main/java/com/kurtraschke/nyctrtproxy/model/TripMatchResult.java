@@ -17,8 +17,7 @@ package com.kurtraschke.nyctrtproxy.model;
 
 import com.google.transit.realtime.GtfsRealtime.TripUpdate;
 import com.google.transit.realtime.GtfsRealtime.TripUpdateOrBuilder;
-import org.onebusaway.gtfs.model.StopTime;
-
+import java.util.List;
 import java.util.ListIterator;
 
 /**
@@ -39,6 +38,7 @@ public class TripMatchResult implements Comparable<TripMatchResult> {
   private int delta; // lateness of RT trip relative to static trip
   private TripUpdateOrBuilder tripUpdate;
   private String rtTripId;
+  private NyctTripId rtid; // parsed RT trip ID, if set by the caller
 
   public TripMatchResult(TripUpdateOrBuilder tripUpdate, Status status, ActivatedTrip result, int delta) {
     this.tripUpdate = tripUpdate;
@@ -78,6 +78,10 @@ public class TripMatchResult implements Comparable<TripMatchResult> {
     return result != null;
   }
 
+  public int getDelta() {
+    return delta;
+  }
+
   // return negative number, 0, or positive number as this object is worse, equal or better than the other
   @Override
   public int compareTo(TripMatchResult other) {
@@ -131,15 +135,16 @@ public class TripMatchResult implements Comparable<TripMatchResult> {
     if (!hasResult())
       throw new IllegalArgumentException("Cannot call lastStopMatches on a match result without an ActivatedTrip");
     // Step through in reverse
-    ListIterator<StopTime> stopTimes = result.getStopTimes().listIterator(result.getStopTimes().size());
+    List<String> stopIds = result.getStopIds();
+    ListIterator<String> staticStops = stopIds.listIterator(stopIds.size());
     ListIterator<TripUpdate.StopTimeUpdate> stopUpdates = tripUpdate.getStopTimeUpdateList()
             .listIterator(tripUpdate.getStopTimeUpdateCount());
     while(stopUpdates.hasPrevious()) {
-      if (!stopTimes.hasPrevious()) {
+      if (!staticStops.hasPrevious()) {
         return false;
       }
       String rtStop = stopUpdates.previous().getStopId();
-      String staticStop = stopTimes.previous().getStop().getId().getId();
+      String staticStop = staticStops.previous();
       if (!rtStop.equals(staticStop)) {
         return false;
       }
@@ -152,7 +157,7 @@ public class TripMatchResult implements Comparable<TripMatchResult> {
   }
 
   public String getStaticLastStop() {
-    return result.getStopTimes().get(result.getStopTimes().size() - 1).getStop().getId().getId();
+    return result.getStopIds().get(result.getStopIds().size() - 1);
   }
 
   public String getRtLastStop() {
@@ -162,4 +167,12 @@ public class TripMatchResult implements Comparable<TripMatchResult> {
   public String getRtTripId() {
     return rtTripId;
   }
+
+  public NyctTripId getRtid() {
+    return rtid;
+  }
+
+  public void setRtid(NyctTripId rtid) {
+    this.rtid = rtid;
+  }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.model;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.util.Set;
+
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.fixedStartDate;
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.tripStartTime;
+
+/**
+ * Realtime TripUpdate along with values derived from it, computed once per feed message when the TripUpdate is read.
+ *
+ * @author Simon Jacobs
+ */
+public class TripUpdateContext {
+
+  private final GtfsRealtime.TripUpdate tripUpdate;
+  private final String routeId; // static route ID
+  private final NyctTripId rtid; // null if trip ID could not be parsed
+  private final String startDate; // YYYYMMDD
+  private final long startTime; // epoch millis, see NycRealtimeUtil#tripStartTime
+  private final long latestStopTime; // epoch seconds, or -1 if no stop time update has a time
+  private final boolean expired;
+
+  /**
+   * @param tripUpdate TripUpdate from realtime feed
+   * @param routeId static route ID of the TripUpdate
+   * @param reverseDirectionsRoutes routes with reversed realtime directions
+   * @param tripIdNames route and network IDs of static trip IDs, see {@link NyctTripId.Names}
+   * @param timestamp timestamp of feed message, epoch seconds
+   */
+  public TripUpdateContext(GtfsRealtime.TripUpdate tripUpdate, String routeId, Set<String> reverseDirectionsRoutes,
+                           NyctTripId.Names tripIdNames, long timestamp) {
+    GtfsRealtime.TripDescriptor td = tripUpdate.getTrip();
+    this.tripUpdate = tripUpdate;
+    this.routeId = routeId;
+    this.rtid = NyctTripId.buildFromTripId(td.getTripId(), routeId, reverseDirectionsRoutes, tripIdNames);
+    this.startDate = td.getStartDate().length() > 8 ? fixedStartDate(td) : td.getStartDate();
+    this.startTime = tripStartTime(rtid, startDate);
+
+    long latest = -1;
+    for (GtfsRealtime.TripUpdate.StopTimeUpdate stu : tripUpdate.getStopTimeUpdateList()) {
+      GtfsRealtime.TripUpdate.StopTimeEvent event = stu.hasDeparture() ? stu.getDeparture() : stu.getArrival();
+      if (event.hasTime())
+        latest = Math.max(latest, event.getTime());
+    }
+    this.latestStopTime = latest;
+    // TU is *expired* if the latest arrival or departure is 5 minutes before feed's timestamp
+    this.expired = latest >= 0 && latest < timestamp - 300;
+  }
+
+  public GtfsRealtime.TripUpdate getTripUpdate() {
+    return tripUpdate;
+  }
+
+  public String getRouteId() {
+    return routeId;
+  }
+
+  public NyctTripId getRtid() {
+    return rtid;
+  }
+
+  public String getStartDate() {
+    return startDate;
+  }
+
+  public long getStartTime() {
+    return startTime;
+  }
+
+  public long getLatestStopTime() {
+    return latestStopTime;
+  }
+
+  public boolean isExpired() {
+    return expired;
+  }
+}
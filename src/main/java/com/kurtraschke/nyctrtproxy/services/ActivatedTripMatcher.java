@@ -26,6 +26,8 @@ import com.kurtraschke.nyctrtproxy.model.ActivatedTrip;
 import com.kurtraschke.nyctrtproxy.model.NyctTripId;
 import com.kurtraschke.nyctrtproxy.model.Status;
 import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
 
 import javax.inject.Named;
 import java.lang.reflect.Type;
@@ -49,8 +51,6 @@ public class ActivatedTripMatcher implements TripMatcher {
   // copied from ProxyProvider
   private Set<String> _routesUsingAlternateIdFormat = ImmutableSet.of("SI", "L", "N", "Q", "R", "W", "B", "D");
 
-  private Multimap<String, ActivatedTrip> staticTripsForRoute;
-
   @Inject
   public void setTripActivator(TripActivator tripActivator) {
     _tripActivator = tripActivator;
@@ -63,10 +63,15 @@ public class ActivatedTripMatcher implements TripMatcher {
   }
 
   @Override
-  public TripMatchResult match(TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp) {
+  public void updateStaticGtfs(GtfsRelationalDao dao, CalendarServiceData csd, StaticTripIndex index) {
+    _tripActivator.updateStaticGtfs(dao, csd, index);
+  }
+
+  @Override
+  public TripMatchResult match(Context context, TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp) {
     String routeId = rtid.getRouteId();
     TripDescriptorOrBuilder tb = tu.getTrip();
-    Stream<ActivatedTrip> candidateTrips = staticTripsForRoute.get(routeId)
+    Stream<ActivatedTrip> candidateTrips = ((ActivatedTrips) context).staticTripsForRoute.get(routeId)
             .stream()
             .filter(at -> at.getServiceDate().getAsString().equals(tb.getStartDate()));
 
@@ -87,10 +92,20 @@ public class ActivatedTripMatcher implements TripMatcher {
   }
 
   @Override
-  public void initForFeed(Date start, Date end, Set<String> routeIds) {
-    staticTripsForRoute = ArrayListMultimap.create();
+  public Context initForFeed(Date start, Date end, Set<String> routeIds) {
+    Multimap<String, ActivatedTrip> staticTripsForRoute = ArrayListMultimap.create();
     for (ActivatedTrip trip : _tripActivator.getTripsForRangeAndRoutes(start, end, routeIds).collect(Collectors.toList())) {
       staticTripsForRoute.put(trip.getTrip().getRoute().getId().getId(), trip);
     }
+    return new ActivatedTrips(staticTripsForRoute);
+  }
+
+  // Trips active in the range given to initForFeed. Not modified after creation.
+  private static class ActivatedTrips implements Context {
+    private final Multimap<String, ActivatedTrip> staticTripsForRoute;
+
+    ActivatedTrips(Multimap<String, ActivatedTrip> staticTripsForRoute) {
+      this.staticTripsForRoute = staticTripsForRoute;
+    }
   }
 }
@@ -15,10 +15,8 @@
  */
 package com.kurtraschke.nyctrtproxy.services;
 
-import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
-import org.onebusaway.gtfs.services.calendar.CalendarServiceDataFactory;
 
 import com.google.inject.Provider;
 
@@ -32,8 +30,14 @@ public class CalendarServiceDataProvider implements
 
   @Override
   public CalendarServiceData get() {
-    CalendarServiceDataFactory csdf = new CalendarServiceDataFactoryImpl(_dao);
-    CalendarServiceData csd = csdf.createData();
-    return csd;
+    return createCalendarServiceData(_dao);
+  }
+
+  static CalendarServiceData createCalendarServiceData(GtfsRelationalDao dao) {
+    // calendar data is compiled into snapshots
+    if (dao instanceof GtfsSnapshot.SnapshotDao)
+      return ((GtfsSnapshot.SnapshotDao) dao).getCalendarServiceData();
+    // otherwise, only work out active services for dates as they are needed
+    return new LazyCalendarServiceData(dao);
   }
 }
\ No newline at end of file
@@ -10,6 +10,7 @@ import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.util.HashMap;
@@ -35,6 +36,10 @@ public class DirectionsService {
 
     private Map<String, DirectionEntry> dirByStation = new HashMap<>();
 
+    // directional stop ID -> stop headsign extension, for stops which have a headsign
+    private Map<String, GtfsRealtimeOneBusAway.OneBusAwayStopTimeUpdate> headsignByStopId = new HashMap<>();
+
+    @PostConstruct
     public void init() {
         List<DirectionEntry> stationDirections = readCsv(DirectionEntry.class, _directionsCsv);
 
@@ -44,35 +49,65 @@ public class DirectionsService {
             }
             dirByStation.put(dir.getGtfsStopId(), dir);
         }
+
+        if (_dao != null) {
+            headsignByStopId = buildStopHeadsigns(_dao);
+        }
+    }
+
+    /**
+     * Replace static GTFS after it has been reloaded. Station directions are not reread.
+     */
+    public void updateGtfsRelationalDao(GtfsRelationalDao dao) {
+        _dao = dao;
+        headsignByStopId = buildStopHeadsigns(dao);
+    }
+
+    private Map<String, GtfsRealtimeOneBusAway.OneBusAwayStopTimeUpdate> buildStopHeadsigns(GtfsRelationalDao dao) {
+        Map<String, GtfsRealtimeOneBusAway.OneBusAwayStopTimeUpdate> headsigns = new HashMap<>();
+        for (Stop stop : dao.getAllStops()) {
+            String stopId = stop.getId().getId();
+            if (!headsigns.containsKey(stopId)) {
+                GtfsRealtimeOneBusAway.OneBusAwayStopTimeUpdate stopTimeUpdate = buildStopHeadsign(stopId);
+                if (stopTimeUpdate != null)
+                    headsigns.put(stopId, stopTimeUpdate);
+            }
+        }
+        _log.info("Stop headsigns for {} stops", headsigns.size());
+        return headsigns;
     }
 
     public void fillStopHeadSigns(List<GtfsRealtime.TripUpdate.StopTimeUpdate.Builder> stopTimeUpdates){
 
         for (GtfsRealtime.TripUpdate.StopTimeUpdate.Builder stu : stopTimeUpdates) {
+            GtfsRealtimeOneBusAway.OneBusAwayStopTimeUpdate stopTimeUpdate = headsignByStopId.get(stu.getStopId());
+            if (stopTimeUpdate != null) {
+                stu.setExtension(GtfsRealtimeOneBusAway.obaStopTimeUpdate, stopTimeUpdate);
+            }
+        }
+    }
 
-            String stopId = stu.getStopId();
-            String stationId = getStationForStopId(stopId);
-            DirectionEntry dir = dirByStation.get(stationId);
+    private GtfsRealtimeOneBusAway.OneBusAwayStopTimeUpdate buildStopHeadsign(String stopId) {
+        String stationId = getStationForStopId(stopId);
+        DirectionEntry dir = dirByStation.get(stationId);
 
-            if (dir == null) {
-                _log.debug("Missing station ID = {}", stationId);
-                continue;
-            }
+        if (dir == null) {
+            _log.debug("Missing station ID = {}", stationId);
+            return null;
+        }
 
-            String direction = stopId.substring(stopId.length() - 1);
-            String headsign = null;
+        String direction = stopId.substring(stopId.length() - 1);
+        String headsign = null;
 
-            if ("N".equals(direction)) {
-                headsign = dir.getRailroadNorthDescriptor();
-            } else if ("S".equals(direction)) {
-                headsign = dir.getRailroadSouthDescriptor();
-            }
-            if (headsign != null && !headsign.equals("n/a")) {
-                GtfsRealtimeOneBusAway.OneBusAwayStopTimeUpdate stopTimeUpdate = GtfsRealtimeOneBusAway.OneBusAwayStopTimeUpdate
-                        .newBuilder().setStopHeadsign(headsign).build();
-                stu.setExtension(GtfsRealtimeOneBusAway.obaStopTimeUpdate, stopTimeUpdate);
-            }
+        if ("N".equals(direction)) {
+            headsign = dir.getRailroadNorthDescriptor();
+        } else if ("S".equals(direction)) {
+            headsign = dir.getRailroadSouthDescriptor();
         }
+        if (headsign != null && !headsign.equals("n/a")) {
+            return GtfsRealtimeOneBusAway.OneBusAwayStopTimeUpdate.newBuilder().setStopHeadsign(headsign).build();
+        }
+        return null;
     }
 
     private String getStationForStopId(String stopId){
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtimeNYCT;
+import com.google.transit.realtime.GtfsRealtimeNYCT.NyctFeedHeader;
+import com.google.transit.realtime.GtfsRealtimeNYCT.TripReplacementPeriod;
+import com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Named;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Replays recorded feed messages through the trip update processor before the proxy starts serving, so that matching
+ * code is compiled and static data is indexed before the first real update. Output is discarded: nothing is published
+ * or reported to the listener.
+ *
+ * Recordings are named like the test feeds, {@code <feedId>_<anything>.pb}. Each recording is moved forward by whole
+ * weeks to the week of today, so that its trips match the current schedule on the same day of the week.
+ *
+ * @author Simon Jacobs
+ */
+public class FeedReplayWarmup {
+
+  private static final Logger _log = LoggerFactory.getLogger(FeedReplayWarmup.class);
+
+  private TripUpdateProcessor _processor;
+
+  private File _warmupPath = null; // directory of recordings, or a single recording; null = no warm-up
+
+  private int _iterations = 20;
+
+  private int _seconds = 60;
+
+  @Inject
+  public void setTripUpdateProcessor(TripUpdateProcessor processor) {
+    _processor = processor;
+  }
+
+  @Inject(optional = true)
+  public void setWarmupPath(@Named("NYCT.warmupPath") File warmupPath) {
+    _warmupPath = warmupPath;
+  }
+
+  @Inject(optional = true)
+  public void setIterations(@Named("NYCT.warmupIterations") int iterations) {
+    _iterations = iterations;
+  }
+
+  @Inject(optional = true)
+  public void setSeconds(@Named("NYCT.warmupSeconds") int seconds) {
+    _seconds = seconds;
+  }
+
+  /**
+   * Replay all recordings in turn, until either the number of iterations or the time limit is reached.
+   *
+   * @return number of feed messages processed
+   */
+  public int run() {
+    if (_warmupPath == null)
+      return 0;
+
+    List<Recording> recordings = readRecordings();
+    if (recordings.isEmpty()) {
+      _log.warn("No recorded feeds in {}, skipping warm-up", _warmupPath);
+      return 0;
+    }
+
+    long t0 = System.currentTimeMillis();
+    long deadline = t0 + _seconds * 1000L;
+    int n = 0, iteration;
+    warmup:
+    for (iteration = 0; iteration < _iterations; iteration++) {
+      for (Recording recording : recordings) {
+        if (System.currentTimeMillis() >= deadline)
+          break warmup;
+        try {
+          _processor.replayFeed(recording.feedId, recording.payload);
+        } catch (Exception e) {
+          _log.warn("Error replaying {}: {}", recording.name, e.getMessage());
+        }
+        n++;
+      }
+    }
+
+    // Don't let matches against recorded trips leak into real updates.
+    _processor.clearCaches();
+    _log.info("Warm-up replayed {} feed messages ({} iterations) in {}ms", n, iteration,
+            System.currentTimeMillis() - t0);
+    return n;
+  }
+
+  private List<Recording> readRecordings() {
+    List<File> files;
+    if (_warmupPath.isDirectory()) {
+      File[] pbs = _warmupPath.listFiles((dir, name) -> name.endsWith(".pb"));
+      files = pbs == null ? Collections.emptyList() : new ArrayList<>(Arrays.asList(pbs));
+      Collections.sort(files);
+    } else {
+      files = Collections.singletonList(_warmupPath);
+    }
+
+    // service days start in the agency time zone
+    ZoneId zone = _processor.getStaticTripIndex().getTimeZone().toZoneId();
+    List<Recording> recordings = new ArrayList<>();
+    for (File file : files) {
+      Integer feedId = getFeedId(file.getName());
+      if (feedId == null) {
+        _log.warn("Can't tell feed ID of {}, expected <feedId>_<anything>.pb", file);
+        continue;
+      }
+      try (InputStream is = new FileInputStream(file)) {
+        FeedMessage fm = FeedMessage.parseFrom(is, NycRealtimeUtil.getExtensionRegistry());
+        recordings.add(new Recording(file.getName(), feedId, moveToThisWeek(fm, zone).toByteArray()));
+      } catch (IOException e) {
+        _log.warn("Unable to read recorded feed {}: {}", file, e.getMessage());
+      }
+    }
+    return recordings;
+  }
+
+  private static Integer getFeedId(String name) {
+    int i = name.indexOf('_');
+    if (i <= 0)
+      return null;
+    try {
+      return Integer.parseInt(name.substring(0, i));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Shift all times and dates in a feed message by the whole number of weeks between when it was recorded and today.
+   *
+   * @param fm recorded feed message
+   * @param zone time zone of service days
+   * @return feed message as if recorded within half a week of today, on the same day of the week
+   */
+  public static FeedMessage moveToThisWeek(FeedMessage fm, ZoneId zone) {
+    LocalDate recorded = Instant.ofEpochSecond(fm.getHeader().getTimestamp()).atZone(zone).toLocalDate();
+    long weeks = Math.round(ChronoUnit.DAYS.between(recorded, LocalDate.now(zone)) / 7.0);
+    return moveByWeeks(fm, weeks, zone);
+  }
+
+  /**
+   * Shift all times and dates in a feed message by calendar weeks. Times keep their local time of day in the zone,
+   * even if a daylight saving change falls in between.
+   *
+   * @param fm feed message
+   * @param weeks number of weeks, negative to move back
+   * @param zone time zone of service days
+   * @return moved feed message
+   */
+  public static FeedMessage moveByWeeks(FeedMessage fm, long weeks, ZoneId zone) {
+    if (weeks == 0)
+      return fm;
+    LongUnaryOperator moveTime = t -> Instant.ofEpochSecond(t).atZone(zone).plusWeeks(weeks).toEpochSecond();
+    long days = weeks * 7;
+
+    FeedMessage.Builder builder = fm.toBuilder();
+    GtfsRealtime.FeedHeader.Builder header = builder.getHeaderBuilder();
+    header.setTimestamp(moveTime.applyAsLong(header.getTimestamp()));
+    if (header.hasExtension(GtfsRealtimeNYCT.nyctFeedHeader)) {
+      NyctFeedHeader.Builder nyctHeader = header.getExtension(GtfsRealtimeNYCT.nyctFeedHeader).toBuilder();
+      for (TripReplacementPeriod.Builder trp : nyctHeader.getTripReplacementPeriodBuilderList()) {
+        if (!trp.hasReplacementPeriod())
+          continue;
+        GtfsRealtime.TimeRange.Builder range = trp.getReplacementPeriodBuilder();
+        if (range.hasStart())
+          range.setStart(moveTime.applyAsLong(range.getStart()));
+        if (range.hasEnd())
+          range.setEnd(moveTime.applyAsLong(range.getEnd()));
+      }
+      header.setExtension(GtfsRealtimeNYCT.nyctFeedHeader, nyctHeader.build());
+    }
+
+    for (FeedEntity.Builder entity : builder.getEntityBuilderList()) {
+      if (entity.hasTripUpdate()) {
+        TripUpdate.Builder tu = entity.getTripUpdateBuilder();
+        if (tu.hasTimestamp())
+          tu.setTimestamp(moveTime.applyAsLong(tu.getTimestamp()));
+        moveTrip(tu.getTripBuilder(), days);
+        for (StopTimeUpdate.Builder stu : tu.getStopTimeUpdateBuilderList()) {
+          if (stu.hasArrival() && stu.getArrival().hasTime())
+            stu.getArrivalBuilder().setTime(moveTime.applyAsLong(stu.getArrival().getTime()));
+          if (stu.hasDeparture() && stu.getDeparture().hasTime())
+            stu.getDepartureBuilder().setTime(moveTime.applyAsLong(stu.getDeparture().getTime()));
+        }
+      }
+      if (entity.hasVehicle()) {
+        GtfsRealtime.VehiclePosition.Builder vehicle = entity.getVehicleBuilder();
+        if (vehicle.hasTimestamp())
+          vehicle.setTimestamp(moveTime.applyAsLong(vehicle.getTimestamp()));
+        if (vehicle.hasTrip())
+          moveTrip(vehicle.getTripBuilder(), days);
+      }
+    }
+    return builder.build();
+  }
+
+  private static void moveTrip(TripDescriptor.Builder trip, long days) {
+    if (trip.hasStartDate())
+      trip.setStartDate(moveDate(trip.getStartDate(), days));
+  }
+
+  // Start dates are usually yyyyMMdd, but some feeds send yyyy-MM-dd with a time after it.
+  private static String moveDate(String date, long days) {
+    try {
+      if (date.length() == 8)
+        return LocalDate.parse(date, DateTimeFormatter.BASIC_ISO_DATE).plusDays(days)
+                .format(DateTimeFormatter.BASIC_ISO_DATE);
+      if (date.length() >= 10)
+        return LocalDate.parse(date.substring(0, 10)).plusDays(days) + date.substring(10);
+    } catch (DateTimeParseException e) {
+      // leave it for the processor to deal with
+    }
+    return date;
+  }
+
+  private static class Recording {
+    private final String name;
+    private final int feedId;
+    private final byte[] payload;
+
+    Recording(String name, int feedId, byte[] payload) {
+      this.name = name;
+      this.feedId = feedId;
+      this.payload = payload;
+    }
+  }
+}
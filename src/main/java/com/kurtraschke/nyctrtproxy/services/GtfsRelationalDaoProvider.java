@@ -16,9 +16,22 @@
 package com.kurtraschke.nyctrtproxy.services;
 
 import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.gtfs.serialization.GtfsReader;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+import com.google.inject.Inject;
 import com.google.inject.Provider;
 
 import org.slf4j.Logger;
@@ -26,27 +39,90 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Set;
 
-import javax.inject.Inject;
 import javax.inject.Named;
 
 public class GtfsRelationalDaoProvider implements Provider<GtfsRelationalDao> {
 
   private static final Logger _log = LoggerFactory.getLogger(GtfsRelationalDaoProvider.class);
 
+  // GTFS files read by the proxy. Others (shapes, transfers, fares, frequencies...) are skipped.
+  private static final List<Class<?>> ENTITY_CLASSES = ImmutableList.of(Agency.class, Route.class, Stop.class,
+          Trip.class, StopTime.class, ServiceCalendar.class, ServiceCalendarDate.class);
+
   @Inject
   @Named("NYCT.gtfsPath")
   private File _gtfsPath;
 
+  private File _gtfsSnapshotPath = null;
+
+  private Set<String> _routes = null; // static route IDs to load; null = all
+
   public void setGtfsPath(File gtfsPath) {
     _gtfsPath = gtfsPath;
   }
 
+  @Inject(optional = true)
+  public void setGtfsSnapshotPath(@Named("NYCT.gtfsSnapshotPath") File gtfsSnapshotPath) {
+    _gtfsSnapshotPath = gtfsSnapshotPath;
+  }
+
+  @Inject(optional = true)
+  public void setRoutes(@Named("NYCT.gtfsRoutes") String json) {
+    Type type = new TypeToken<Set<String>>(){}.getType();
+    _routes = new Gson().fromJson(json, type);
+  }
+
   @Override
   public GtfsRelationalDao get() {
+    long heapBefore = usedHeap();
+    GtfsRelationalDao dao = load();
+    long heapAfter = usedHeap();
+    _log.info("Static GTFS: {} routes, {} trips, {} stops. Heap {}MB before loading, {}MB after",
+            dao.getAllRoutes().size(), dao.getAllTrips().size(), dao.getAllStops().size(),
+            heapBefore >> 20, heapAfter >> 20);
+    return dao;
+  }
+
+  private GtfsRelationalDao load() {
+    if (_gtfsSnapshotPath != null) {
+      if (GtfsSnapshot.isCurrent(_gtfsSnapshotPath, _gtfsPath, _routes)) {
+        _log.info("Loading GTFS snapshot from {}", _gtfsSnapshotPath);
+        try {
+          return GtfsSnapshot.read(_gtfsSnapshotPath);
+        } catch (IOException | RuntimeException e) {
+          _log.warn("Unable to read GTFS snapshot, falling back to GTFS", e);
+        }
+      } else {
+        _log.warn("GTFS snapshot {} is missing, stale or of other routes, run with --compile to update it", _gtfsSnapshotPath);
+      }
+    }
+    return readGtfs();
+  }
+
+  /**
+   * Read GTFS and write it to the snapshot path, to be loaded on later startups.
+   *
+   * @throws IOException if the snapshot cannot be written
+   */
+  public void compileSnapshot() throws IOException {
+    if (_gtfsSnapshotPath == null)
+      throw new IllegalStateException("NYCT.gtfsSnapshotPath is not set");
+    GtfsRelationalDao dao = readGtfs();
+    CalendarServiceData csd = new CalendarServiceDataFactoryImpl(dao).createData();
+    GtfsSnapshot.write(_gtfsSnapshotPath, _gtfsPath, _routes, dao, csd);
+    _log.info("Wrote GTFS snapshot to {}", _gtfsSnapshotPath);
+  }
+
+  private GtfsRelationalDao readGtfs() {
     _log.info("Loading GTFS from {}", _gtfsPath.toString());
-    GtfsRelationalDaoImpl dao = new GtfsRelationalDaoImpl();
+    GtfsRelationalDaoImpl dao = _routes == null ? new GtfsRelationalDaoImpl() : new RouteFilteringDao(_routes);
     GtfsReader reader = new GtfsReader();
+    reader.getEntityClasses().retainAll(ENTITY_CLASSES);
     reader.setEntityStore(dao);
     try {
       reader.setInputLocation(_gtfsPath);
@@ -57,4 +133,35 @@ public class GtfsRelationalDaoProvider implements Provider<GtfsRelationalDao> {
     }
     return dao;
   }
+
+  // Heap in use, garbage included: only a rough guide to the footprint of loaded GTFS, as collecting here would stall
+  // background reloads.
+  private static long usedHeap() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  /**
+   * DAO which drops routes other than the given ones as GTFS is read, along with their trips and stop times.
+   */
+  private static class RouteFilteringDao extends GtfsRelationalDaoImpl {
+
+    private final Set<String> _routes;
+
+    RouteFilteringDao(Set<String> routes) {
+      _routes = routes;
+    }
+
+    @Override
+    public void saveEntity(Object entity) {
+      // Trips refer to their route, and stop times to their trip, by looking them up in this DAO, so trips of dropped
+      // routes have no route, and stop times of dropped trips have no trip.
+      if (entity instanceof Route && !_routes.contains(((Route) entity).getId().getId()))
+        return;
+      if (entity instanceof Trip && ((Trip) entity).getRoute() == null)
+        return;
+      if (entity instanceof StopTime && ((StopTime) entity).getTrip() == null)
+        return;
+      super.saveEntity(entity);
+    }
+  }
 }
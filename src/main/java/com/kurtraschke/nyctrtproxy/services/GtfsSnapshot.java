@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * Compact binary snapshot of the static GTFS data the proxy uses: agencies, routes, stops, trips with their stop
+ * times, and the service dates of each service ID.
+ *
+ * Only the fields read by the proxy are kept. The snapshot records the length and modification time of the GTFS file
+ * it was compiled from, and the routes it was filtered to, so a snapshot of an older GTFS file or of other routes is
+ * not used.
+ *
+ * @author Simon Jacobs
+ */
+public class GtfsSnapshot {
+
+  private static final int MAGIC = 0x4E594353; // "NYCS"
+
+  private static final int VERSION = 2;
+
+  private static final int NULL = -1;
+
+  /**
+   * GTFS data loaded from a snapshot, along with the calendar data compiled into it.
+   */
+  public static class SnapshotDao extends GtfsRelationalDaoImpl {
+
+    private final CalendarServiceData _calendarServiceData = new CalendarServiceData();
+
+    public CalendarServiceData getCalendarServiceData() {
+      return _calendarServiceData;
+    }
+  }
+
+  /**
+   * Check whether a snapshot exists and was compiled from the current version of a GTFS file, filtered to the given
+   * routes.
+   *
+   * @param snapshotPath snapshot file
+   * @param gtfsPath GTFS file; if it does not exist, any snapshot of the same routes is considered current
+   * @param routes static route IDs the snapshot should be filtered to; null = all
+   * @return true if the snapshot can be used instead of the GTFS file
+   */
+  public static boolean isCurrent(File snapshotPath, File gtfsPath, Set<String> routes) {
+    if (!snapshotPath.isFile())
+      return false;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(snapshotPath))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        return false;
+      long length = in.readLong();
+      long lastModified = in.readLong();
+      Set<String> snapshotRoutes = readRoutes(in);
+      if (routes == null ? snapshotRoutes != null : !routes.equals(snapshotRoutes))
+        return false;
+      return !gtfsPath.exists() || (gtfsPath.length() == length && gtfsPath.lastModified() == lastModified);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Write a snapshot. The file is replaced atomically, so a reader never sees a partial snapshot.
+   *
+   * @param snapshotPath file to write
+   * @param gtfsPath GTFS file the data was read from
+   * @param routes static route IDs the data was filtered to; null = all
+   * @param dao static data
+   * @param csd calendar data computed from dao
+   * @throws IOException if the snapshot cannot be written
+   */
+  public static void write(File snapshotPath, File gtfsPath, Set<String> routes, GtfsRelationalDao dao,
+                           CalendarServiceData csd) throws IOException {
+    List<Agency> agencies = new ArrayList<>(dao.getAllAgencies());
+    List<Route> allRoutes = new ArrayList<>(dao.getAllRoutes());
+    List<Stop> stops = new ArrayList<>(dao.getAllStops());
+    List<Trip> trips = new ArrayList<>(dao.getAllTrips());
+    List<AgencyAndId> serviceIds = new ArrayList<>(csd.getServiceIds());
+
+    Map<String, Integer> strings = new LinkedHashMap<>();
+    for (Agency agency : agencies)
+      intern(strings, agency.getId(), agency.getName(), agency.getUrl(), agency.getTimezone());
+    for (Route route : allRoutes)
+      intern(strings, route.getId().getAgencyId(), route.getId().getId(), route.getShortName(), route.getLongName());
+    for (Stop stop : stops)
+      intern(strings, stop.getId().getAgencyId(), stop.getId().getId(), stop.getName(), stop.getParentStation());
+    for (Trip trip : trips)
+      intern(strings, trip.getId().getAgencyId(), trip.getId().getId(), trip.getServiceId().getAgencyId(),
+              trip.getServiceId().getId(), trip.getDirectionId(), trip.getMtaTripId());
+    for (AgencyAndId serviceId : serviceIds)
+      intern(strings, serviceId.getAgencyId(), serviceId.getId());
+
+    Map<Agency, Integer> agencyIndexes = indexes(agencies);
+    Map<Route, Integer> routeIndexes = indexes(allRoutes);
+    Map<Stop, Integer> stopIndexes = indexes(stops);
+
+    File tmp = new File(snapshotPath.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(gtfsPath.length());
+      out.writeLong(gtfsPath.lastModified());
+      writeRoutes(out, routes);
+
+      out.writeInt(strings.size());
+      for (String s : strings.keySet()) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+
+      out.writeInt(agencies.size());
+      for (Agency agency : agencies) {
+        writeStrings(out, strings, agency.getId(), agency.getName(), agency.getUrl(), agency.getTimezone());
+      }
+
+      out.writeInt(allRoutes.size());
+      for (Route route : allRoutes) {
+        out.writeInt(agencyIndexes.get(route.getAgency()));
+        writeStrings(out, strings, route.getId().getAgencyId(), route.getId().getId(), route.getShortName(),
+                route.getLongName());
+        out.writeInt(route.getType());
+      }
+
+      out.writeInt(stops.size());
+      for (Stop stop : stops) {
+        writeStrings(out, strings, stop.getId().getAgencyId(), stop.getId().getId(), stop.getName(),
+                stop.getParentStation());
+        out.writeInt(stop.getLocationType());
+      }
+
+      out.writeInt(trips.size());
+      for (Trip trip : trips) {
+        out.writeInt(routeIndexes.get(trip.getRoute()));
+        writeStrings(out, strings, trip.getId().getAgencyId(), trip.getId().getId(),
+                trip.getServiceId().getAgencyId(), trip.getServiceId().getId(), trip.getDirectionId(),
+                trip.getMtaTripId());
+        List<StopTime> stopTimes = dao.getStopTimesForTrip(trip);
+        out.writeInt(stopTimes.size());
+        for (StopTime stopTime : stopTimes) {
+          out.writeInt(stopIndexes.get(stopTime.getStop()));
+          out.writeInt(stopTime.getArrivalTime());
+          out.writeInt(stopTime.getDepartureTime());
+          out.writeInt(stopTime.getStopSequence());
+        }
+      }
+
+      out.writeInt(serviceIds.size());
+      for (AgencyAndId serviceId : serviceIds) {
+        writeStrings(out, strings, serviceId.getAgencyId(), serviceId.getId());
+        List<ServiceDate> dates = csd.getServiceDatesForServiceId(serviceId);
+        out.writeInt(dates.size());
+        for (ServiceDate date : dates)
+          out.writeInt(date.getYear() * 10000 + date.getMonth() * 100 + date.getDay());
+      }
+    }
+    Files.move(tmp.toPath(), snapshotPath.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read a snapshot. The file is memory-mapped rather than read through a stream.
+   *
+   * @param snapshotPath snapshot file
+   * @return static data, including calendar data
+   * @throws IOException if the file cannot be read or is not a snapshot of this version
+   */
+  public static SnapshotDao read(File snapshotPath) throws IOException {
+    ByteBuffer buf;
+    try (FileChannel channel = FileChannel.open(snapshotPath.toPath(), StandardOpenOption.READ)) {
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+      throw new IOException("Not a GTFS snapshot of version " + VERSION + ": " + snapshotPath);
+    buf.getLong(); // GTFS length
+    buf.getLong(); // GTFS modification time
+    int nRoutes = buf.getInt(); // route filter
+    for (int i = 0; i < nRoutes; i++)
+      buf.position(buf.position() + buf.getInt());
+
+    String[] strings = new String[buf.getInt()];
+    for (int i = 0; i < strings.length; i++) {
+      byte[] bytes = new byte[buf.getInt()];
+      buf.get(bytes);
+      strings[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    SnapshotDao dao = new SnapshotDao();
+    CalendarServiceData csd = dao.getCalendarServiceData();
+
+    Agency[] agencies = new Agency[buf.getInt()];
+    for (int i = 0; i < agencies.length; i++) {
+      Agency agency = new Agency();
+      agency.setId(readString(buf, strings));
+      agency.setName(readString(buf, strings));
+      agency.setUrl(readString(buf, strings));
+      agency.setTimezone(readString(buf, strings));
+      dao.saveEntity(agency);
+      csd.putTimeZoneForAgencyId(agency.getId(), TimeZone.getTimeZone(agency.getTimezone()));
+      agencies[i] = agency;
+    }
+
+    Route[] routes = new Route[buf.getInt()];
+    for (int i = 0; i < routes.length; i++) {
+      Route route = new Route();
+      route.setAgency(agencies[buf.getInt()]);
+      route.setId(readId(buf, strings));
+      route.setShortName(readString(buf, strings));
+      route.setLongName(readString(buf, strings));
+      route.setType(buf.getInt());
+      dao.saveEntity(route);
+      routes[i] = route;
+    }
+
+    Stop[] stops = new Stop[buf.getInt()];
+    for (int i = 0; i < stops.length; i++) {
+      Stop stop = new Stop();
+      stop.setId(readId(buf, strings));
+      stop.setName(readString(buf, strings));
+      stop.setParentStation(readString(buf, strings));
+      stop.setLocationType(buf.getInt());
+      dao.saveEntity(stop);
+      stops[i] = stop;
+    }
+
+    int nTrips = buf.getInt(), stopTimeId = 0;
+    for (int i = 0; i < nTrips; i++) {
+      Trip trip = new Trip();
+      trip.setRoute(routes[buf.getInt()]);
+      trip.setId(readId(buf, strings));
+      trip.setServiceId(readId(buf, strings));
+      trip.setDirectionId(readString(buf, strings));
+      trip.setMtaTripId(readString(buf, strings));
+      dao.saveEntity(trip);
+      int nStopTimes = buf.getInt();
+      for (int j = 0; j < nStopTimes; j++) {
+        StopTime stopTime = new StopTime();
+        stopTime.setId(stopTimeId++);
+        stopTime.setTrip(trip);
+        stopTime.setStop(stops[buf.getInt()]);
+        stopTime.setArrivalTime(buf.getInt());
+        stopTime.setDepartureTime(buf.getInt());
+        stopTime.setStopSequence(buf.getInt());
+        dao.saveEntity(stopTime);
+      }
+    }
+
+    int nServices = buf.getInt();
+    for (int i = 0; i < nServices; i++) {
+      AgencyAndId serviceId = readId(buf, strings);
+      List<ServiceDate> dates = new ArrayList<>();
+      int nDates = buf.getInt();
+      for (int j = 0; j < nDates; j++) {
+        int date = buf.getInt();
+        dates.add(new ServiceDate(date / 10000, (date / 100) % 100, date % 100));
+      }
+      csd.putServiceDatesForServiceId(serviceId, dates);
+    }
+
+    return dao;
+  }
+
+  private static void intern(Map<String, Integer> strings, String... values) {
+    for (String value : values) {
+      if (value != null)
+        strings.putIfAbsent(value, strings.size());
+    }
+  }
+
+  private static <T> Map<T, Integer> indexes(Collection<T> values) {
+    Map<T, Integer> indexes = new HashMap<>();
+    for (T value : values)
+      indexes.put(value, indexes.size());
+    return indexes;
+  }
+
+  private static void writeStrings(DataOutputStream out, Map<String, Integer> strings, String... values)
+          throws IOException {
+    for (String value : values)
+      out.writeInt(value == null ? NULL : strings.get(value));
+  }
+
+  // Route filter in the header: number of routes, or NULL for all, then each route ID as length and UTF-8 bytes.
+  private static void writeRoutes(DataOutputStream out, Set<String> routes) throws IOException {
+    if (routes == null) {
+      out.writeInt(NULL);
+      return;
+    }
+    out.writeInt(routes.size());
+    for (String route : new TreeSet<>(routes)) {
+      byte[] bytes = route.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static Set<String> readRoutes(DataInputStream in) throws IOException {
+    int n = in.readInt();
+    if (n == NULL)
+      return null;
+    Set<String> routes = new TreeSet<>();
+    for (int i = 0; i < n; i++) {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      routes.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+    return routes;
+  }
+
+  private static String readString(ByteBuffer buf, String[] strings) {
+    int index = buf.getInt();
+    return index == NULL ? null : strings[index];
+  }
+
+  private static AgencyAndId readId(ByteBuffer buf, String[] strings) {
+    String agencyId = readString(buf, strings);
+    return new AgencyAndId(agencyId, readString(buf, strings));
+  }
+}
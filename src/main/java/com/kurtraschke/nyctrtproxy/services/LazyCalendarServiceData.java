@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * Calendar data which works out the services active on a date when it is asked for, from calendar.txt and
+ * calendar_dates.txt, rather than expanding every service over the whole feed when GTFS is loaded. Nothing is cached
+ * here: matching only asks about a few days around the current date, and {@link StaticTripIndex#getActiveServices}
+ * keeps the active services of those days.
+ *
+ * Time zones are set for all agencies up front. Localized service IDs are not supported.
+ *
+ * @author Simon Jacobs
+ */
+public class LazyCalendarServiceData extends CalendarServiceData {
+
+  private final Set<AgencyAndId> _serviceIds = new HashSet<>();
+
+  private final Map<AgencyAndId, ServiceCalendar> _calendarsByServiceId = new HashMap<>();
+
+  private final ListMultimap<AgencyAndId, ServiceCalendarDate> _calendarDatesByServiceId = ArrayListMultimap.create();
+
+  private final ListMultimap<ServiceDate, ServiceCalendarDate> _calendarDatesByDate = ArrayListMultimap.create();
+
+  public LazyCalendarServiceData(GtfsRelationalDao dao) {
+    for (Agency agency : dao.getAllAgencies())
+      putTimeZoneForAgencyId(agency.getId(), TimeZone.getTimeZone(agency.getTimezone()));
+    for (ServiceCalendar calendar : dao.getAllCalendars()) {
+      _serviceIds.add(calendar.getServiceId());
+      _calendarsByServiceId.put(calendar.getServiceId(), calendar);
+    }
+    for (ServiceCalendarDate calendarDate : dao.getAllCalendarDates()) {
+      _serviceIds.add(calendarDate.getServiceId());
+      _calendarDatesByServiceId.put(calendarDate.getServiceId(), calendarDate);
+      _calendarDatesByDate.put(calendarDate.getDate(), calendarDate);
+    }
+  }
+
+  @Override
+  public Set<AgencyAndId> getServiceIds() {
+    return Collections.unmodifiableSet(_serviceIds);
+  }
+
+  /**
+   * Expand a service over the whole feed. Matching does not use this, so it is not cached; it is here so that the
+   * calendar data can be used anywhere onebusaway's can, e.g. to write a snapshot.
+   */
+  @Override
+  public List<ServiceDate> getServiceDatesForServiceId(AgencyAndId serviceId) {
+    if (!_serviceIds.contains(serviceId))
+      return null;
+    TreeSet<ServiceDate> dates = new TreeSet<>();
+    ServiceCalendar calendar = _calendarsByServiceId.get(serviceId);
+    if (calendar != null) {
+      for (ServiceDate sd = calendar.getStartDate(); sd.compareTo(calendar.getEndDate()) <= 0; sd = sd.next()) {
+        if (runsOn(calendar, sd))
+          dates.add(sd);
+      }
+    }
+    for (ServiceCalendarDate calendarDate : _calendarDatesByServiceId.get(serviceId)) {
+      if (calendarDate.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_ADD)
+        dates.add(calendarDate.getDate());
+      else if (calendarDate.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_REMOVE)
+        dates.remove(calendarDate.getDate());
+    }
+    return new ArrayList<>(dates);
+  }
+
+  @Override
+  public Set<AgencyAndId> getServiceIdsForDate(ServiceDate date) {
+    Set<AgencyAndId> serviceIds = new HashSet<>();
+    for (ServiceCalendar calendar : _calendarsByServiceId.values()) {
+      if (calendar.getStartDate().compareTo(date) <= 0 && date.compareTo(calendar.getEndDate()) <= 0
+              && runsOn(calendar, date))
+        serviceIds.add(calendar.getServiceId());
+    }
+    for (ServiceCalendarDate calendarDate : _calendarDatesByDate.get(date)) {
+      if (calendarDate.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_ADD)
+        serviceIds.add(calendarDate.getServiceId());
+      else if (calendarDate.getExceptionType() == ServiceCalendarDate.EXCEPTION_TYPE_REMOVE)
+        serviceIds.remove(calendarDate.getServiceId());
+    }
+    return ImmutableSet.copyOf(serviceIds);
+  }
+
+  private static boolean runsOn(ServiceCalendar calendar, ServiceDate sd) {
+    switch (LocalDate.of(sd.getYear(), sd.getMonth(), sd.getDay()).getDayOfWeek()) {
+      case MONDAY:
+        return calendar.getMonday() == 1;
+      case TUESDAY:
+        return calendar.getTuesday() == 1;
+      case WEDNESDAY:
+        return calendar.getWednesday() == 1;
+      case THURSDAY:
+        return calendar.getThursday() == 1;
+      case FRIDAY:
+        return calendar.getFriday() == 1;
+      case SATURDAY:
+        return calendar.getSaturday() == 1;
+      case SUNDAY:
+        return calendar.getSunday() == 1;
+      default:
+        return false;
+    }
+  }
+}
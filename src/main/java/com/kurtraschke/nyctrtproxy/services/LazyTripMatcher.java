@@ -20,26 +20,23 @@ import com.google.inject.Inject;
 import com.google.transit.realtime.GtfsRealtime;
 import com.kurtraschke.nyctrtproxy.model.ActivatedTrip;
 import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.StaticTrip;
 import com.kurtraschke.nyctrtproxy.model.Status;
+import com.kurtraschke.nyctrtproxy.model.StopPattern;
 import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
-import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
 import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.Route;
-import org.onebusaway.gtfs.model.StopTime;
-import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
-import org.onebusaway.gtfs.services.calendar.CalendarServiceDataFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Named;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 /**
@@ -55,8 +52,7 @@ public class LazyTripMatcher implements TripMatcher {
 
   private int _lateTripLimitSec = 3600; // 1 hour
   private String _agencyId = "MTA NYCT";
-  private GtfsRelationalDao _dao;
-  private CalendarServiceData _csd;
+  private StaticTripIndex _index;
   private boolean _looseMatchDisabled = false;
 
   private static final Logger _log = LoggerFactory.getLogger(LazyTripMatcher.class);
@@ -64,15 +60,10 @@ public class LazyTripMatcher implements TripMatcher {
   private Set<String> _mergableRoutes = Sets.newHashSet("D");
 
   @Inject
-  public void setGtfsRelationalDao(GtfsRelationalDao dao) {
-    _dao = dao;
+  public void setStaticTripIndex(StaticTripIndex index) {
+    _index = index;
   }
 
-  @Inject
-  public void setCalendarServiceData(CalendarServiceData csd) {
-    _csd = csd;
-  }
-  
   @Inject(optional = true)
   public void setAgencyMatchId(@Named("NYCT.gtfsAgency") String agencyid) {
 	  _agencyId = agencyid;
@@ -92,19 +83,31 @@ public class LazyTripMatcher implements TripMatcher {
       _mergableRoutes = new HashSet<>(Arrays.asList(routesStr.split(",")));
   }
 
+  private static final Context NO_CONTEXT = new Context() {};
+
   @Override
+  public void updateStaticGtfs(GtfsRelationalDao dao, CalendarServiceData csd, StaticTripIndex index) {
+    _index = index;
+  }
+
+  @Override
+  public TripMatchResult match(Context context, GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId id, long timestamp) {
+    return match(tu, id, timestamp);
+  }
+
   public TripMatchResult match(GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId id, long timestamp) {
     if (id == null)
       return new TripMatchResult(tu, Status.BAD_TRIP_ID);
 
-    ServiceDate sd = new ServiceDate(new Date(timestamp * 1000));
+    ServiceDate sd = _index.getServiceDate(timestamp * 1000);
     Set<TripMatchResult> candidates = Sets.newHashSet();
-    boolean foundTripWithStartTime = addCandidates(tu, id, sd, candidates);
+    StopPatternCheck stopCheck = new StopPatternCheck(_index.getStopSequence(tu));
+    boolean foundTripWithStartTime = addCandidates(tu, id, stopCheck, sd, candidates);
 
     // Look back to previous day. Static IDs have a 26-hour service period, RT IDs are relative to midnight.
     // Latest trip departure is 26:02:00, so this technically allows us to consider trips that are up to 58min late (and most likely later.)
     if (id.getOriginDepartureTime() < 3 * 60 * 100)
-      foundTripWithStartTime |= addCandidates(tu, id.relativeToPreviousDay(), sd.previous(), candidates);
+      foundTripWithStartTime |= addCandidates(tu, id.relativeToPreviousDay(), stopCheck, sd.previous(), candidates);
 
     if (candidates.isEmpty())
       return new TripMatchResult(tu, foundTripWithStartTime ? Status.NO_MATCH : Status.NO_TRIP_WITH_START_DATE);
@@ -112,45 +115,61 @@ public class LazyTripMatcher implements TripMatcher {
       return Collections.max(candidates); // get BEST match. see TripMatchResult::compareTo
   }
 
+  // Same test as addCandidates: strict matches are accepted whatever their stops; loose matches if the stops match, or
+  // the route may need merging.
+  @Override
+  public boolean acceptsMatch(TripMatchResult result) {
+    if (result.getStatus() == Status.STRICT_MATCH)
+      return true;
+    return result.stopsMatchToEnd() || _mergableRoutes.contains(result.getTripUpdate().getTrip().getRouteId());
+  }
+
   @Override
-  public void initForFeed(Date start, Date end, Set<String> routeIds) {
-    // do nothing
+  public Context initForFeed(Date start, Date end, Set<String> routeIds) {
+    // nothing to initialize
+    return NO_CONTEXT;
   }
 
   // Find possible match candidates among static trips.
   // return true if trips were found with start date
-  private boolean addCandidates(GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId id, ServiceDate sd, Set<TripMatchResult> candidates) {
+  private boolean addCandidates(GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId id, StopPatternCheck stopCheck,
+                                ServiceDate sd, Set<TripMatchResult> candidates) {
 
     boolean found = false;
-    Route r = _dao.getRouteForId(new AgencyAndId(_agencyId, tu.getTrip().getRouteId()));
-    Set<AgencyAndId> serviceIds = _csd.getServiceIdsForDate(sd);
+    AgencyAndId routeId = new AgencyAndId(_agencyId, tu.getTrip().getRouteId());
+    BitSet services = _index.getActiveServices(sd);
 
-    // We check through all trips. This could be easily restricted, but performance has not been a problem.
-    for (Trip trip : _dao.getTripsForRoute(r)) {
-      List<StopTime> stopTimes = _dao.getStopTimesForTrip(trip);
-      if (stopTimes.isEmpty())
-        continue;
-      NyctTripId atid = NyctTripId.buildFromGtfs(trip, stopTimes);
-      if (atid == null || !atid.routeDirMatch(id))
-        continue;
-      int start = stopTimes.get(0).getDepartureTime(); // in sec into day.
-      int end = stopTimes.get(stopTimes.size()-1).getArrivalTime();
-      boolean onServiceDay = serviceIds.contains(trip.getServiceId());
-      if (atid.strictMatch(id) && onServiceDay) {
+    // Strict matches are looked up directly.
+    for (StaticTrip st : _index.getStrictMatches(id)) {
+      if (services.get(st.getServiceIndex()) && st.getTrip().getRoute().getId().equals(routeId)) {
         found = true;
-        candidates.add(new TripMatchResult(tu, new ActivatedTrip(sd, trip, stopTimes)));
-        continue;
+        candidates.add(new TripMatchResult(tu, new ActivatedTrip(sd, st)));
       }
+    }
+
+    if (_looseMatchDisabled)
+      return found;
+
+    // Only trips which departed up to _lateTripLimitSec before the RT trip can be a loose match.
+    int rtStart = (int) (id.getOriginDepartureTime() * 0.6);
+    for (StaticTrip st : _index.getTripsForRouteDeparting(routeId, id.getDirection(), rtStart - _lateTripLimitSec, rtStart + 1)) {
+      NyctTripId atid = st.getParsedTripId();
+      if (!atid.routeDirMatch(id))
+        continue;
+      boolean onServiceDay = services.get(st.getServiceIndex());
+      if (onServiceDay && atid.strictMatch(id))
+        continue; // already a candidate
+      int start = st.getStartTime(); // in sec into day.
       // loose match, RT trip could be late relative to static trip
       int delta = (int) (((double) id.getOriginDepartureTime())*0.6 - start);
-      if (!_looseMatchDisabled && delta >= 0 && delta < _lateTripLimitSec) {
+      if (delta >= 0 && delta < _lateTripLimitSec) {
         found &= onServiceDay;
 
-        ActivatedTrip at = new ActivatedTrip(sd, trip, stopTimes);
-        TripMatchResult result = TripMatchResult.looseMatch(tu, at, delta, onServiceDay);
         // disable trips that are coerced AND on a different day
-        if ((onServiceDay || delta == 0) && (result.stopsMatchToEnd() || _mergableRoutes.contains(tu.getTrip().getRouteId())))
-          candidates.add(result);
+        if ((onServiceDay || delta == 0) && (stopCheck.stopsMatchToEnd(st) || _mergableRoutes.contains(tu.getTrip().getRouteId()))) {
+          ActivatedTrip at = new ActivatedTrip(sd, st);
+          candidates.add(TripMatchResult.looseMatch(tu, at, delta, onServiceDay));
+        }
 
       }
     }
@@ -158,4 +177,26 @@ public class LazyTripMatcher implements TripMatcher {
     return found;
   }
 
+  // Stops of a TripUpdate, checked against static trips. The result is the same for all trips with the same stop
+  // pattern, so it is computed once per pattern.
+  private static class StopPatternCheck {
+    private final int[] rtStops;
+    private final BitSet checked = new BitSet();
+    private final BitSet matched = new BitSet();
+
+    StopPatternCheck(int[] rtStops) {
+      this.rtStops = rtStops;
+    }
+
+    boolean stopsMatchToEnd(StaticTrip st) {
+      StopPattern pattern = st.getPattern();
+      int index = pattern.getIndex();
+      if (!checked.get(index)) {
+        checked.set(index);
+        matched.set(index, pattern.endsWith(rtStops));
+      }
+      return matched.get(index);
+    }
+  }
+
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import java.io.File;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the static GTFS in use, and reloads it when the GTFS file changes.
+ *
+ * A changed file is loaded on a separate thread while matching continues against the current GTFS. The new GTFS is
+ * then swapped in on the update thread, between feed updates. At most two generations of static data are held at
+ * once: the one in use and the one being loaded. A new load does not start until the previous one has been swapped in.
+ *
+ * Ahead of midnight, the services active and trips running on the next service days are worked out in the background,
+ * so that the first updates of the day do not have to.
+ *
+ * @author Simon Jacobs
+ */
+public class StaticGtfsReloader {
+
+  private static final Logger _log = LoggerFactory.getLogger(StaticGtfsReloader.class);
+
+  private static final int PRECOMPUTE_SECONDS_BEFORE_MIDNIGHT = 3600;
+
+  private GtfsRelationalDaoProvider _loader;
+
+  private Provider<TripUpdateProcessor> _processor;
+
+  private ScheduledExecutorService _updateExecutor;
+
+  private File _gtfsPath;
+
+  private int _reloadInterval = 0; // seconds; 0 = never reload
+
+  // reloads and precomputation
+  private ScheduledExecutorService _backgroundExecutor;
+
+  // Only written on the update thread once loaded.
+  private volatile Generation _current = null;
+
+  // GTFS file as of the last load, and as of the last poll. Only accessed from the reload thread once loaded.
+  private long _loadedLength, _loadedModified;
+  private long _polledLength, _polledModified;
+
+  @Inject
+  public void setGtfsRelationalDaoProvider(GtfsRelationalDaoProvider loader) {
+    _loader = loader;
+  }
+
+  @Inject
+  public void setTripUpdateProcessor(Provider<TripUpdateProcessor> processor) {
+    _processor = processor;
+  }
+
+  @Inject
+  public void setScheduledExecutorService(ScheduledExecutorService service) {
+    _updateExecutor = service;
+  }
+
+  @Inject
+  public void setGtfsPath(@Named("NYCT.gtfsPath") File gtfsPath) {
+    _gtfsPath = gtfsPath;
+  }
+
+  @Inject(optional = true)
+  public void setReloadInterval(@Named("NYCT.gtfsReloadInterval") int reloadInterval) {
+    _reloadInterval = reloadInterval;
+  }
+
+  @PostConstruct
+  public void start() {
+    _backgroundExecutor = Executors.newSingleThreadScheduledExecutor();
+    if (_reloadInterval > 0)
+      _backgroundExecutor.scheduleWithFixedDelay(this::checkForUpdate, _reloadInterval, _reloadInterval, TimeUnit.SECONDS);
+    schedulePrecompute();
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_backgroundExecutor != null)
+      _backgroundExecutor.shutdownNow();
+  }
+
+  public GtfsRelationalDao getGtfsRelationalDao() {
+    return getCurrent().dao;
+  }
+
+  public CalendarServiceData getCalendarServiceData() {
+    return getCurrent().csd;
+  }
+
+  public StaticTripIndex getStaticTripIndex() {
+    return getCurrent().index;
+  }
+
+  private synchronized Generation getCurrent() {
+    if (_current == null) {
+      _loadedLength = _polledLength = _gtfsPath.length();
+      _loadedModified = _polledModified = _gtfsPath.lastModified();
+      _current = load();
+    }
+    return _current;
+  }
+
+  /**
+   * Poll the GTFS file, and reload it if it has changed since it was loaded and not changed since the last poll, so that
+   * a file which is still being downloaded is not read. Reloaded GTFS is swapped in on the update thread before this
+   * returns. Called every NYCT.gtfsReloadInterval seconds from the reload thread.
+   */
+  public void checkForUpdate() {
+    long length = _gtfsPath.length();
+    long modified = _gtfsPath.lastModified();
+    boolean settled = length == _polledLength && modified == _polledModified;
+    _polledLength = length;
+    _polledModified = modified;
+
+    if (modified == 0 || (length == _loadedLength && modified == _loadedModified))
+      return;
+    if (!settled) {
+      _log.info("GTFS {} has changed, waiting for it to settle", _gtfsPath);
+      return;
+    }
+
+    // Don't retry a file that failed to load; wait for it to change again.
+    _loadedLength = length;
+    _loadedModified = modified;
+
+    Generation next;
+    try {
+      next = load();
+    } catch (RuntimeException e) {
+      _log.error("Unable to reload GTFS, continuing with current GTFS", e);
+      return;
+    }
+
+    try {
+      _updateExecutor.submit(() -> swap(next)).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      _log.error("Error switching to reloaded GTFS", e.getCause());
+    } catch (RejectedExecutionException e) {
+      // shutting down
+    }
+  }
+
+  // Midnight is midnight in the agency time zone, where service days start.
+  private void schedulePrecompute() {
+    ZonedDateTime now = ZonedDateTime.now(getStaticTripIndex().getTimeZone().toZoneId());
+    ZonedDateTime at = now.toLocalDate().plusDays(1).atStartOfDay(now.getZone())
+            .minusSeconds(PRECOMPUTE_SECONDS_BEFORE_MIDNIGHT);
+    if (!at.isAfter(now))
+      at = at.plusDays(1);
+    try {
+      _backgroundExecutor.schedule(this::precompute, Duration.between(now, at).toMillis(), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // shutting down
+    }
+  }
+
+  // After midnight, matching looks at the service days either side of the new day.
+  private void precompute() {
+    try {
+      StaticTripIndex index = getStaticTripIndex();
+      // an hour before midnight, so today is still the service day ending at midnight
+      ServiceDate tomorrow = index.getServiceDate(System.currentTimeMillis()).next();
+      for (ServiceDate sd : Arrays.asList(tomorrow, tomorrow.next()))
+        index.precompute(sd);
+      _log.info("Precomputed active trips for {}", tomorrow);
+    } catch (RuntimeException e) {
+      _log.error("Error precomputing next service day", e);
+    }
+    schedulePrecompute();
+  }
+
+  private Generation load() {
+    long t0 = System.currentTimeMillis();
+    GtfsRelationalDao dao = _loader.get();
+    CalendarServiceData csd = CalendarServiceDataProvider.createCalendarServiceData(dao);
+    StaticTripIndex index = createStaticTripIndex(dao, csd);
+    _log.info("Loaded static GTFS in {}ms", System.currentTimeMillis() - t0);
+    return new Generation(dao, csd, index);
+  }
+
+  /**
+   * Index static GTFS, then drop its stop times from the DAO. Stop times are only read through the index from then on,
+   * which keeps their times in a StopTimeTable.
+   *
+   * @param dao static GTFS; no longer has stop times on return
+   * @param csd calendar data for dao
+   * @return index of dao
+   */
+  private static StaticTripIndex createStaticTripIndex(GtfsRelationalDao dao, CalendarServiceData csd) {
+    StaticTripIndex index = new StaticTripIndex(dao, csd);
+    if (dao instanceof GtfsRelationalDaoImpl) {
+      ((GtfsRelationalDaoImpl) dao).clearAllEntitiesForType(StopTime.class);
+      ((GtfsRelationalDaoImpl) dao).clearAllCaches();
+    }
+    return index;
+  }
+
+  private void swap(Generation next) {
+    _processor.get().updateStaticGtfs(next.dao, next.csd, next.index);
+    _current = next;
+    _log.info("Switched to reloaded GTFS");
+  }
+
+  private static class Generation {
+    private final GtfsRelationalDao dao;
+    private final CalendarServiceData csd;
+    private final StaticTripIndex index;
+
+    Generation(GtfsRelationalDao dao, CalendarServiceData csd, StaticTripIndex index) {
+      this.dao = dao;
+      this.csd = csd;
+      this.index = index;
+    }
+  }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.transit.realtime.GtfsRealtime;
+import com.kurtraschke.nyctrtproxy.model.ActivatedTrip;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.StaticTrip;
+import com.kurtraschke.nyctrtproxy.model.StopPattern;
+import com.kurtraschke.nyctrtproxy.model.StopTimeTable;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Index of static trips, built once per GTFS load, so that matching does not need to scan the schedule.
+ *
+ * @author Simon Jacobs
+ */
+public class StaticTripIndex {
+
+  private static final Logger _log = LoggerFactory.getLogger(StaticTripIndex.class);
+
+  // active services and timelines are kept for this many days either side of the most recently requested date
+  private static final int SERVICE_DATE_WINDOW_DAYS = 3;
+
+  private final CalendarServiceData _csd;
+
+  // service dates start in the agency time zone, which need not be the JVM's
+  private final TimeZone _timeZone;
+
+  private final Map<AgencyAndId, Integer> _serviceIndexes = new HashMap<>();
+
+  private final ConcurrentMap<ServiceDate, BitSet> _activeServicesByDate = new ConcurrentHashMap<>();
+
+  private final Map<String, Integer> _stopIndexes = new HashMap<>();
+
+  // route and network IDs in static trip IDs; realtime trip IDs are parsed against these
+  private final NyctTripId.Names _tripIdNames = new NyctTripId.Names();
+
+  // agency ID -> IDs of all stops in static data, whether or not any trip visits them
+  private final SetMultimap<String, String> _stopIdsByAgency = HashMultimap.create();
+
+  private final Set<String> _allStopIds;
+
+  private final Set<String> _allRouteIds;
+
+  // stop sequence -> pattern
+  private final Map<StopSequenceKey, StopPattern> _patterns = new HashMap<>();
+
+  // times of all static stop times; StopTime objects are not referenced once indexed
+  private final StopTimeTable _stopTimes = new StopTimeTable();
+
+  private final ListMultimap<AgencyAndId, StaticTrip> _tripsByRoute = ArrayListMultimap.create();
+
+  // NyctTripId key (route, direction, origin-departure time, network) -> trips
+  private final ListMultimap<Long, StaticTrip> _tripsByStrictMatchKey = ArrayListMultimap.create();
+
+  // route -> direction -> trips sorted by first departure
+  private final Map<AgencyAndId, Map<String, TripsByDeparture<StaticTrip>>> _tripsByDeparture = new HashMap<>();
+
+  // service date -> route -> trips running on the date, sorted by first departure
+  private final ConcurrentMap<ServiceDate, Map<AgencyAndId, TripsByDeparture<ActivatedTrip>>> _timelinesByDate =
+          new ConcurrentHashMap<>();
+
+  public StaticTripIndex(GtfsRelationalDao dao, CalendarServiceData csd) {
+    _csd = csd;
+    _timeZone = getAgencyTimeZone(dao, csd);
+    for (Stop stop : dao.getAllStops())
+      _stopIdsByAgency.put(stop.getId().getAgencyId(), stop.getId().getId());
+    _allStopIds = ImmutableSet.copyOf(_stopIdsByAgency.values());
+    _allRouteIds = dao.getAllRoutes().stream()
+            .map(route -> route.getId().getId())
+            .collect(ImmutableSet.toImmutableSet());
+    for (Route route : dao.getAllRoutes()) {
+      for (Trip trip : dao.getTripsForRoute(route)) {
+        List<StopTime> stopTimes = dao.getStopTimesForTrip(trip);
+        if (stopTimes.isEmpty())
+          continue;
+        NyctTripId id;
+        try {
+          id = NyctTripId.buildFromGtfs(trip, stopTimes, _tripIdNames);
+        } catch (IllegalArgumentException e) {
+          _log.warn("Unable to parse static trip={}, error={}", trip.getId(), e.getMessage());
+          continue;
+        }
+        int serviceIndex = _serviceIndexes.computeIfAbsent(trip.getServiceId(), k -> _serviceIndexes.size());
+        StaticTrip staticTrip = new StaticTrip(trip, _stopTimes, _stopTimes.add(stopTimes), id, serviceIndex,
+                getPattern(stopTimes));
+        _tripsByRoute.put(route.getId(), staticTrip);
+        if (id.getNetworkId() != null)
+          _tripsByStrictMatchKey.put(id.getKey(), staticTrip);
+      }
+    }
+    _stopTimes.trimToSize();
+    for (AgencyAndId routeId : _tripsByRoute.keySet()) {
+      List<StaticTrip> trips = _tripsByRoute.get(routeId);
+      _tripsByDeparture.put(routeId, groupByDeparture(trips, trip -> trip.getParsedTripId().getDirection()));
+    }
+    ServiceDate today = getServiceDate(System.currentTimeMillis());
+    for (ServiceDate sd : Arrays.asList(today.previous(), today, today.next()))
+      precompute(sd);
+    _log.info("Indexed {} static trips, {} stop times, {} strict match keys, {} services, {} stops, {} stop patterns",
+            _tripsByRoute.size(), _stopTimes.size(), _tripsByStrictMatchKey.keySet().size(), _serviceIndexes.size(),
+            _stopIndexes.size(), _patterns.size());
+  }
+
+  /**
+   * Get the agency time zone, in which service dates start.
+   *
+   * @return agency time zone
+   */
+  public TimeZone getTimeZone() {
+    return _timeZone;
+  }
+
+  /**
+   * Get the calendar date in the agency time zone at an instant.
+   *
+   * @param timeMillis instant, in milliseconds since the epoch
+   * @return service date
+   */
+  public ServiceDate getServiceDate(long timeMillis) {
+    Calendar calendar = Calendar.getInstance(_timeZone);
+    calendar.setTimeInMillis(timeMillis);
+    return new ServiceDate(calendar);
+  }
+
+  /**
+   * Get all static trips on a route.
+   *
+   * @param routeId route ID
+   * @return static trips on route
+   */
+  public List<StaticTrip> getTripsForRoute(AgencyAndId routeId) {
+    return _tripsByRoute.get(routeId);
+  }
+
+  /**
+   * Get static trips on a route, in a direction, whose first departure is in a range.
+   *
+   * @param routeId route ID
+   * @param direction direction, as in {@link NyctTripId#getDirection}
+   * @param fromSec start of range, seconds into service day (inclusive)
+   * @param toSec end of range, seconds into service day (inclusive)
+   * @return static trips, sorted by first departure
+   */
+  public List<StaticTrip> getTripsForRouteDeparting(AgencyAndId routeId, String direction, int fromSec, int toSec) {
+    TripsByDeparture<StaticTrip> trips = _tripsByDeparture.getOrDefault(routeId, Collections.emptyMap()).get(direction);
+    if (trips == null)
+      return Collections.emptyList();
+    return trips.getDeparting(fromSec, toSec);
+  }
+
+  /**
+   * Get trips on a route running on a service date which are active at any point in a range. The trips running on each
+   * date are materialized once, when the date is first requested or by {@link #precompute}.
+   *
+   * @param routeId route ID
+   * @param sd service date
+   * @param fromSec start of range, seconds into service day (inclusive)
+   * @param toSec end of range, seconds into service day (inclusive)
+   * @return trips on service date whose first departure is before the end of the range and last arrival after its start
+   */
+  public List<ActivatedTrip> getActivatedTripsForRouteActive(AgencyAndId routeId, ServiceDate sd, int fromSec, int toSec) {
+    TripsByDeparture<ActivatedTrip> trips = getTimeline(sd).get(routeId);
+    if (trips == null)
+      return Collections.emptyList();
+    List<ActivatedTrip> active = new ArrayList<>();
+    trips.addActive(fromSec, toSec, active);
+    return active;
+  }
+
+  /**
+   * Work out the active services and trips running on a service date ahead of time, so that the first requests for the
+   * date do not have to.
+   *
+   * @param sd service date
+   */
+  public void precompute(ServiceDate sd) {
+    getTimeline(sd);
+  }
+
+  /**
+   * Get the table of route and network IDs of static trip IDs. Realtime trip IDs must be parsed against this table
+   * (see {@link NyctTripId#buildFromTripId(String, String, Set, NyctTripId.Names)}) to match trips in this index.
+   *
+   * @return route and network IDs
+   */
+  public NyctTripId.Names getTripIdNames() {
+    return _tripIdNames;
+  }
+
+  /**
+   * Get static trips which would be a strict match (see {@link NyctTripId#strictMatch}) for a trip ID.
+   *
+   * @param id parsed trip ID
+   * @return matching static trips, on any service
+   */
+  public List<StaticTrip> getStrictMatches(NyctTripId id) {
+    if (id.getNetworkId() == null || id.getNames() != _tripIdNames)
+      return Collections.emptyList();
+    return _tripsByStrictMatchKey.get(id.getKey());
+  }
+
+  /**
+   * Check whether a stop is in static data.
+   *
+   * @param agencyId agency ID
+   * @param stopId stop ID
+   * @return true if static data has the stop
+   */
+  public boolean hasStop(String agencyId, String stopId) {
+    return _stopIdsByAgency.containsEntry(agencyId, stopId);
+  }
+
+  /**
+   * Get IDs of all stops in static data, of any agency.
+   *
+   * @return stop IDs
+   */
+  public Set<String> getAllStopIds() {
+    return _allStopIds;
+  }
+
+  /**
+   * Get IDs of all routes in static data, of any agency.
+   *
+   * @return route IDs without agency
+   */
+  public Set<String> getAllRouteIds() {
+    return _allRouteIds;
+  }
+
+  /**
+   * Get the stops of a TripUpdate as stop indexes, comparable with {@link StopPattern#endsWith}. Stops which are not
+   * in any static trip are -1.
+   *
+   * @param tu TripUpdate
+   * @return stop indexes, in order of the TripUpdate's stop time updates
+   */
+  public int[] getStopSequence(GtfsRealtime.TripUpdateOrBuilder tu) {
+    int[] stops = new int[tu.getStopTimeUpdateCount()];
+    for (int i = 0; i < stops.length; i++)
+      stops[i] = _stopIndexes.getOrDefault(tu.getStopTimeUpdateOrBuilder(i).getStopId(), -1);
+    return stops;
+  }
+
+  /**
+   * Get the services active on a date, as a set of service indexes (see {@link StaticTrip#getServiceIndex}).
+   * A trip runs on the date if its service index is set. The returned BitSet must not be modified.
+   *
+   * @param sd service date
+   * @return active services
+   */
+  public BitSet getActiveServices(ServiceDate sd) {
+    BitSet services = _activeServicesByDate.get(sd);
+    if (services == null) {
+      services = new BitSet(_serviceIndexes.size());
+      for (AgencyAndId serviceId : _csd.getServiceIdsForDate(sd)) {
+        Integer index = _serviceIndexes.get(serviceId);
+        if (index != null)
+          services.set(index);
+      }
+      _activeServicesByDate.put(sd, services);
+      // roll the window forward
+      ServiceDate min = sd.shift(-SERVICE_DATE_WINDOW_DAYS), max = sd.shift(SERVICE_DATE_WINDOW_DAYS);
+      _activeServicesByDate.keySet().removeIf(d -> d.compareTo(min) < 0 || d.compareTo(max) > 0);
+    }
+    return services;
+  }
+
+  // Time zone of the first agency with one; the NYCT feeds have a single agency.
+  private static TimeZone getAgencyTimeZone(GtfsRelationalDao dao, CalendarServiceData csd) {
+    for (Agency agency : dao.getAllAgencies()) {
+      TimeZone tz = csd.getTimeZoneForAgencyId(agency.getId());
+      if (tz != null)
+        return tz;
+    }
+    _log.warn("No agency time zone in static GTFS, using {}", TimeZone.getDefault().getID());
+    return TimeZone.getDefault();
+  }
+
+  private Map<AgencyAndId, TripsByDeparture<ActivatedTrip>> getTimeline(ServiceDate sd) {
+    Map<AgencyAndId, TripsByDeparture<ActivatedTrip>> timeline = _timelinesByDate.get(sd);
+    if (timeline == null) {
+      timeline = buildTimeline(sd);
+      _timelinesByDate.put(sd, timeline);
+      // roll the window forward
+      ServiceDate min = sd.shift(-SERVICE_DATE_WINDOW_DAYS), max = sd.shift(SERVICE_DATE_WINDOW_DAYS);
+      _timelinesByDate.keySet().removeIf(d -> d.compareTo(min) < 0 || d.compareTo(max) > 0);
+    }
+    return timeline;
+  }
+
+  private Map<AgencyAndId, TripsByDeparture<ActivatedTrip>> buildTimeline(ServiceDate sd) {
+    BitSet services = getActiveServices(sd);
+    Map<AgencyAndId, TripsByDeparture<ActivatedTrip>> timeline = new HashMap<>();
+    for (AgencyAndId routeId : _tripsByRoute.keySet()) {
+      List<ActivatedTrip> trips = new ArrayList<>();
+      for (StaticTrip trip : _tripsByRoute.get(routeId)) {
+        if (services.get(trip.getServiceIndex()))
+          trips.add(new ActivatedTrip(sd, trip));
+      }
+      if (!trips.isEmpty())
+        timeline.put(routeId, new TripsByDeparture<>(trips, at -> at.getStaticTrip().getStartTime(),
+                at -> at.getStaticTrip().getEndTime()));
+    }
+    return timeline;
+  }
+
+  private static <K> Map<K, TripsByDeparture<StaticTrip>> groupByDeparture(List<StaticTrip> trips, Function<StaticTrip, K> key) {
+    ListMultimap<K, StaticTrip> grouped = ArrayListMultimap.create();
+    for (StaticTrip trip : trips)
+      grouped.put(key.apply(trip), trip);
+    Map<K, TripsByDeparture<StaticTrip>> map = new HashMap<>();
+    for (K k : grouped.keySet())
+      map.put(k, new TripsByDeparture<>(grouped.get(k), StaticTrip::getStartTime, StaticTrip::getEndTime));
+    return map;
+  }
+
+  // trips sorted by first departure, with parallel arrays of departure and end times for binary search
+  private static final class TripsByDeparture<T> {
+    private final List<T> trips;
+    private final int[] departures;
+    private final int[] ends;
+    // longest trip; no trip departing earlier than (time - maxDuration) can still be running at time
+    private final int maxDuration;
+
+    TripsByDeparture(List<T> unsorted, ToIntFunction<T> start, ToIntFunction<T> end) {
+      List<T> sorted = new ArrayList<>(unsorted);
+      sorted.sort(Comparator.comparingInt(start));
+      trips = sorted;
+      departures = new int[sorted.size()];
+      ends = new int[sorted.size()];
+      int max = 0;
+      for (int i = 0; i < departures.length; i++) {
+        departures[i] = start.applyAsInt(sorted.get(i));
+        ends[i] = end.applyAsInt(sorted.get(i));
+        max = Math.max(max, ends[i] - departures[i]);
+      }
+      maxDuration = max;
+    }
+
+    List<T> getDeparting(int fromSec, int toSec) {
+      if (fromSec > toSec)
+        return Collections.emptyList();
+      return trips.subList(lowerBound(fromSec), lowerBound(toSec + 1));
+    }
+
+    void addActive(int fromSec, int toSec, List<? super T> active) {
+      if (fromSec - maxDuration > toSec)
+        return;
+      for (int i = lowerBound(fromSec - maxDuration), n = lowerBound(toSec + 1); i < n; i++) {
+        if (ends[i] >= fromSec)
+          active.add(trips.get(i));
+      }
+    }
+
+    // index of first departure >= time
+    private int lowerBound(int time) {
+      int lo = 0, hi = departures.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (departures[mid] < time)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      return lo;
+    }
+  }
+
+  // Get the pattern for a trip's stop times, creating it if no other trip has the same stops.
+  private StopPattern getPattern(List<StopTime> stopTimes) {
+    List<String> stopIds = new ArrayList<>(stopTimes.size());
+    int[] stopSequence = new int[stopTimes.size()];
+    for (int i = 0; i < stopSequence.length; i++) {
+      String stopId = stopTimes.get(i).getStop().getId().getId();
+      stopIds.add(stopId);
+      stopSequence[i] = _stopIndexes.computeIfAbsent(stopId, k -> _stopIndexes.size());
+    }
+    return _patterns.computeIfAbsent(new StopSequenceKey(stopSequence),
+            k -> new StopPattern(_patterns.size(), stopSequence, stopIds));
+  }
+
+  // stop sequence, compared by value
+  private static final class StopSequenceKey {
+    private final int[] stops;
+
+    StopSequenceKey(int[] stops) {
+      this.stops = stops;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof StopSequenceKey && Arrays.equals(stops, ((StopSequenceKey) o).stops);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(stops);
+    }
+  }
+}
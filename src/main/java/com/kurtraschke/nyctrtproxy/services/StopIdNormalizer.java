@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.services;
+
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.transform.StopIdTransformStrategy;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rewrite stop IDs of realtime stop time updates to the form used in static data: add the direction if it is missing,
+ * fix it for routes with reversed realtime directions, then apply the StopIdTransformStrategy, if any.
+ *
+ * For each static route and direction, the result for a static stop ID (with or without direction) is computed the
+ * first time the stop is seen on that route and direction, and kept. Other stop IDs, and stop IDs of routes which are
+ * not in static data, are rewritten every time, so that realtime input cannot grow the tables.
+ *
+ * @author Simon Jacobs
+ */
+public class StopIdNormalizer {
+
+  private final Set<String> _staticStopIds;
+
+  private final Set<String> _staticRouteIds;
+
+  private final Set<String> _routesWithReverseRTDirections;
+
+  private final StopIdTransformStrategy _stopIdTransformStrategy;
+
+  private final ConcurrentMap<TableKey, Table> _tables = new ConcurrentHashMap<>();
+
+  public StopIdNormalizer(Set<String> staticStopIds, Set<String> staticRouteIds,
+                          Set<String> routesWithReverseRTDirections, StopIdTransformStrategy stopIdTransformStrategy) {
+    _staticStopIds = staticStopIds;
+    _staticRouteIds = staticRouteIds;
+    _routesWithReverseRTDirections = routesWithReverseRTDirections;
+    _stopIdTransformStrategy = stopIdTransformStrategy;
+  }
+
+  /**
+   * Get the table for stop IDs of a trip.
+   *
+   * @param tripRouteId route ID of the TripUpdate's trip descriptor
+   * @param rtid parsed ID of the TripUpdate
+   * @return table to normalize the TripUpdate's stop IDs with; not kept if the route is not in static data
+   */
+  public Table getTable(String tripRouteId, NyctTripId rtid) {
+    boolean reverseDirections = _routesWithReverseRTDirections.contains(tripRouteId);
+    TableKey key = new TableKey(rtid.getRouteId(), rtid.getDirection(), reverseDirections);
+    if (!_staticRouteIds.contains(key.routeId))
+      return new Table(key);
+    return _tables.computeIfAbsent(key, Table::new);
+  }
+
+  /**
+   * Stop IDs for one route and direction.
+   */
+  public class Table {
+
+    private final TableKey key;
+
+    // only static stop IDs seen on this route and direction
+    private final ConcurrentMap<String, String> normalizedStopIds = new ConcurrentHashMap<>();
+
+    private Table(TableKey key) {
+      this.key = key;
+    }
+
+    /**
+     * Normalize a stop ID.
+     *
+     * @param stopId stop ID from a realtime stop time update
+     * @return stop ID as in static data
+     */
+    public String normalize(String stopId) {
+      String normalized = normalizedStopIds.get(stopId);
+      if (normalized == null) {
+        normalized = compute(stopId);
+        if (isStaticStopId(stopId))
+          normalizedStopIds.putIfAbsent(stopId, normalized);
+      }
+      return normalized;
+    }
+
+    // stop ID in static data, or a static stop ID without its direction
+    private boolean isStaticStopId(String stopId) {
+      return _staticStopIds.contains(stopId) || _staticStopIds.contains(stopId + "N")
+              || _staticStopIds.contains(stopId + "S");
+    }
+
+    private String compute(String stopId) {
+      if (!(stopId.endsWith("N") || stopId.endsWith("S"))) {
+        stopId = stopId + key.direction;
+      } else if (key.reverseDirections) {
+        stopId = stopId.substring(0, stopId.length() - 1) + key.direction;
+      }
+      if (_stopIdTransformStrategy != null) {
+        stopId = _stopIdTransformStrategy.transform(key.routeId, key.direction, stopId);
+      }
+      return stopId;
+    }
+  }
+
+  private static final class TableKey {
+    private final String routeId;
+    private final String direction;
+    private final boolean reverseDirections;
+
+    TableKey(String routeId, String direction, boolean reverseDirections) {
+      this.routeId = routeId;
+      this.direction = direction;
+      this.reverseDirections = reverseDirections;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      TableKey that = (TableKey) o;
+      return reverseDirections == that.reverseDirections
+              && Objects.equals(routeId, that.routeId)
+              && Objects.equals(direction, that.direction);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(routeId, direction, reverseDirections);
+    }
+  }
+}
@@ -16,8 +16,6 @@
 package com.kurtraschke.nyctrtproxy.services;
 
 import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.StopTime;
-import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
@@ -44,19 +42,14 @@ import javax.inject.Named;
  */
 public class TripActivator {
 
-  private CalendarServiceData _csd;
-
   private GtfsRelationalDao _dao;
 
+  private StaticTripIndex _index;
+
   private String _agencyId = "MTA NYCT";
 
   private static final Logger _log = LoggerFactory.getLogger(TripActivator.class);
 
-  @Inject
-  public void setCalendarServiceData(CalendarServiceData csd) {
-    _csd = csd;
-  }
-  
   @Inject(optional = true)
   public void setAgencyMatchId(@Named("NYCT.gtfsAgency") String agencyid) {
 	  _agencyId = agencyid;
@@ -68,29 +61,31 @@ public class TripActivator {
     _dao = dao;
   }
 
+  @Inject
+  public void setStaticTripIndex(StaticTripIndex index) {
+    _index = index;
+  }
+
+  /**
+   * Replace static GTFS after it has been reloaded.
+   */
+  public void updateStaticGtfs(GtfsRelationalDao dao, CalendarServiceData csd, StaticTripIndex index) {
+    _dao = dao;
+    _index = index;
+  }
+
   public Stream<ActivatedTrip> getTripsForRangeAndRoutes(Date start, Date end, Set<String> routeIds) {
     List<ActivatedTrip> trips = new ArrayList<>();
-    ServiceDate startDate = new ServiceDate(start);
+    ServiceDate startDate = _index.getServiceDate(start.getTime());
     for (ServiceDate sd : Arrays.asList(startDate.previous(), startDate, startDate.next())) {
-        Set<AgencyAndId> serviceIdsForDate = _csd.getServiceIdsForDate(sd);
-
-        int sdOrigin = (int) (sd.getAsCalendar(_csd.getTimeZoneForAgencyId(_agencyId)).getTimeInMillis() / 1000);
+        int sdOrigin = (int) (sd.getAsCalendar(_index.getTimeZone()).getTimeInMillis() / 1000);
 
         int startTime = (int) ((start.getTime() / 1000) - sdOrigin);
         int endTime = (int) ((end.getTime() / 1000) - sdOrigin);
 
-        for (Trip trip : _dao.getAllTrips()) {
-            if (routeIds.contains(trip.getRoute().getId().getId())
-                && serviceIdsForDate.contains(trip.getServiceId())) {
-                List<StopTime> stopTimes = _dao.getStopTimesForTrip(trip);
-                if (stopTimes.isEmpty())
-                    continue;
-                int tripStart = stopTimes.get(0).getDepartureTime();
-                int tripEnd = stopTimes.get(stopTimes.size() - 1).getArrivalTime();
-                if (tripEnd >= startTime && tripStart <= endTime) {
-                    trips.add(new ActivatedTrip(sd, trip, stopTimes));
-                }
-            }
+        for (String routeId : routeIds) {
+            AgencyAndId id = new AgencyAndId(_agencyId, routeId);
+            trips.addAll(_index.getActivatedTripsForRouteActive(id, sd, startTime, endTime));
         }
     }
     return trips.stream();
@@ -101,7 +96,7 @@ public class TripActivator {
   }
 
   public boolean isStopInStaticData(String stop) {
-      return _dao.getStopForId(new AgencyAndId(_agencyId, stop)) != null;
+      return _index.hasStop(_agencyId, stop);
   }
 
   public String getStopNameForId(String stop) {
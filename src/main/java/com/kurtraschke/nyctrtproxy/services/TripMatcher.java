@@ -18,6 +18,8 @@ package com.kurtraschke.nyctrtproxy.services;
 import com.google.transit.realtime.GtfsRealtime;
 import com.kurtraschke.nyctrtproxy.model.NyctTripId;
 import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
 
 import java.util.Date;
 import java.util.Set;
@@ -25,21 +27,31 @@ import java.util.Set;
 /**
  * Match a TripUpdate to a static GTFS trip.
  *
- * Implementations may require an initialization step; if so they can override {@link #initForFeed}.
+ * Implementations may require an initialization step; if so they can override {@link #initForFeed}. Matchers must be
+ * reentrant: any state needed for matching belongs in the {@link Context} returned by initForFeed, so that routes
+ * can be matched concurrently.
  *
  * @author Simon Jacobs
  */
 public interface TripMatcher {
 
+  /**
+   * State a matcher needs for matching a set of routes, created by {@link #initForFeed}. Once created, a context may
+   * be used by several threads at once.
+   */
+  interface Context {
+  }
+
   /**
    * Match a TripUpdate to a static GTFS trip, if possible.
    *
+   * @param context context returned by {@link #initForFeed} for the TripUpdate's route
    * @param tu TripUpdate (or TripUpdate.Builder) to be matched
    * @param rtid parsed ID of TripUpdate
    * @param timestamp time of feed in seconds
    * @return results of match
    */
-  TripMatchResult match(GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp);
+  TripMatchResult match(Context context, GtfsRealtime.TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp);
 
   /**
    * Optional initialization step matcher may require. (In practice, only ActivatedTripMatcher uses this.)
@@ -47,6 +59,32 @@ public interface TripMatcher {
    * @param start Matched static trips should have a start time after or equal to this value.
    * @param end Matched static trips should have an end time before or equal to this value.
    * @param routeIds set of routes which will need to be matched during subsequent calls to {@link #match}.
+   * @return context to pass to {@link #match}
+   */
+  Context initForFeed(Date start, Date end, Set<String> routeIds);
+
+  /**
+   * Check whether a match returned by an earlier call to {@link #match} would still be accepted, now that the
+   * TripUpdate's stops may have changed. Used to reuse matches across feed updates without matching again.
+   *
+   * The default accepts a match if the TripUpdate's stops match the end of the static trip. Matchers which accept
+   * matches on other grounds should override this with the same test they use in {@link #match}.
+   *
+   * @param result earlier match, with the TripUpdate as it is now
+   * @return true if the match can be reused
+   */
+  default boolean acceptsMatch(TripMatchResult result) {
+    return result.stopsMatchToEnd();
+  }
+
+  /**
+   * Replace the static GTFS used for matching after it has been reloaded. Called between feed updates, never while
+   * matching.
+   *
+   * @param dao reloaded GTFS
+   * @param csd calendar data for dao
+   * @param index trip index for dao
    */
-  void initForFeed(Date start, Date end, Set<String> routeIds);
+  default void updateStaticGtfs(GtfsRelationalDao dao, CalendarServiceData csd, StaticTripIndex index) {
+  }
 }
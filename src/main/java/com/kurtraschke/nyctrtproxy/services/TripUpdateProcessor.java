@@ -15,11 +15,15 @@
  */
 package com.kurtraschke.nyctrtproxy.services;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
@@ -33,10 +37,13 @@ import com.google.transit.realtime.GtfsRealtimeOneBusAway;
 import com.kurtraschke.nyctrtproxy.model.*;
 import com.kurtraschke.nyctrtproxy.transform.StopIdTransformStrategy;
 import org.apache.commons.lang.StringUtils;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Named;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -47,12 +54,17 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.OptionalLong;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.earliestTripStart;
-import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.fixedStartDate;
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.getExtensionRegistry;
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.readFeedHeader;
 
 public class TripUpdateProcessor {
 
@@ -81,16 +93,43 @@ public class TripUpdateProcessor {
 
   private DirectionsService _directionsService;
 
+  private StaticTripIndex _staticTripIndex;
+
+  // created on first use, once configuration is complete
+  private StopIdNormalizer _stopIdNormalizer = null;
+
   private boolean _allowDuplicates = false;
 
   private String _cloudwatchNamespace = null;
 
+  private int _matchCacheSize = 10000;
+
+  private int _matchCacheTtl = 3600; // seconds since last use
+
+  // Pool for matching routes in parallel.
+  private ForkJoinPool _matchPool = ForkJoinPool.commonPool();
+
+  // Output of the last processed message per feed, to be reused if the feed has not changed.
+  private final Map<Integer, ProcessedFeed> _lastProcessedByFeed = new ConcurrentHashMap<>();
+
+  // Static trip matched to an RT trip in a previous cycle, keyed by feed, RT trip ID and start date.
+  private Cache<String, CachedMatch> _matchCache = buildMatchCache();
+
   // config
   @Inject(optional = true)
   public void setLatencyLimit(@Named("NYCT.latencyLimit") int limit) {
     _latencyLimit = limit;
   }
 
+  /**
+   * Get the age, in seconds, beyond which a feed message is ignored.
+   *
+   * @return latency limit, or 0 if there is no limit
+   */
+  public int getLatencyLimit() {
+    return _latencyLimit;
+  }
+
   @Inject(optional = true)
   public void setRouteBlacklistByFeed(@Named("NYCT.routeBlacklistByFeed") String json) {
     Type type = new TypeToken<Map<Integer,Set<String>>>(){}.getType();
@@ -115,6 +154,24 @@ public class TripUpdateProcessor {
     _routesWithReverseRTDirections = new Gson().fromJson(json, type);
   }
 
+  @Inject(optional = true)
+  public void setMatchCacheSize(@Named("NYCT.matchCacheSize") int matchCacheSize) {
+    _matchCacheSize = matchCacheSize;
+    _matchCache = buildMatchCache();
+  }
+
+  @Inject(optional = true)
+  public void setMatchCacheTtl(@Named("NYCT.matchCacheTtl") int matchCacheTtl) {
+    _matchCacheTtl = matchCacheTtl;
+    _matchCache = buildMatchCache();
+  }
+
+  @Inject(optional = true)
+  public void setMatchThreads(@Named("NYCT.matchThreads") int matchThreads) {
+    if (matchThreads > 0)
+      _matchPool = new ForkJoinPool(matchThreads);
+  }
+
   @Inject(optional = true)
   public void setCloudwatchNamespace(@Named("cloudwatch.namespace") String namespace) {
     _cloudwatchNamespace = namespace;
@@ -144,6 +201,15 @@ public class TripUpdateProcessor {
     _tripActivator = tripActivator;
   }
 
+  @Inject
+  public void setStaticTripIndex(StaticTripIndex staticTripIndex) {
+    _staticTripIndex = staticTripIndex;
+  }
+
+  public StaticTripIndex getStaticTripIndex() {
+    return _staticTripIndex;
+  }
+
   @Inject
   public void setTripMatcher(TripMatcher tm) {
     _tripMatcher = tm;
@@ -159,45 +225,148 @@ public class TripUpdateProcessor {
     _directionsService = directionsService;
   }
 
+  /**
+   * Switch to reloaded static GTFS. Everything derived from the previous GTFS is dropped, so that it can be
+   * collected once this returns.
+   *
+   * Must not be called while a feed is being processed; StaticGtfsReloader calls it from the update thread.
+   */
+  public synchronized void updateStaticGtfs(GtfsRelationalDao dao, CalendarServiceData csd, StaticTripIndex index) {
+    _staticTripIndex = index;
+    _stopIdNormalizer = null;
+    _tripActivator.updateStaticGtfs(dao, csd, index);
+    _tripMatcher.updateStaticGtfs(dao, csd, index);
+    if (_directionsService != null)
+      _directionsService.updateGtfsRelationalDao(dao);
+    clearCaches();
+  }
+
   public List<GtfsRealtime.TripUpdate> processFeed(Integer feedId, GtfsRealtime.FeedMessage fm, MatchMetrics totalMetrics) {
+    MatchMetrics feedMetrics = new MatchMetrics();
+    feedMetrics.reportLatency(fm.getHeader().getTimestamp());
 
-    long timestamp = fm.getHeader().getTimestamp();
+    if (exceedsLatencyLimit(feedId, feedMetrics))
+      return Collections.emptyList();
+
+    return processFeed(feedId, fm, null, feedMetrics, totalMetrics, _listener);
+  }
+
+  /**
+   * Process a serialized feed message.
+   *
+   * Only the feed header is read before checking latency and whether the feed has changed. If the message has the
+   * same header timestamp and content hash as the last message processed for this feed, the output and metrics of
+   * that message are reused instead of matching again. The full message is only parsed if it will be processed.
+   *
+   * @param feedId ID of feed
+   * @param payload serialized FeedMessage
+   * @param totalMetrics metrics to add this feed's results to
+   * @return processed trip updates
+   * @throws IOException if the payload is not a valid FeedMessage
+   */
+  public List<GtfsRealtime.TripUpdate> processFeed(Integer feedId, byte[] payload, MatchMetrics totalMetrics) throws IOException {
+    long timestamp = readFeedHeader(payload).getTimestamp();
 
     MatchMetrics feedMetrics = new MatchMetrics();
     feedMetrics.reportLatency(timestamp);
 
+    if (exceedsLatencyLimit(feedId, feedMetrics))
+      return Collections.emptyList();
+
+    HashCode contentHash = Hashing.murmur3_128().hashBytes(payload);
+    ProcessedFeed last = _lastProcessedByFeed.get(feedId);
+    if (last != null && last.isFor(timestamp, contentHash)) {
+      _log.info("feed={} unchanged since last update, reusing output", feedId);
+      return reuseProcessedFeed(feedId, last, feedMetrics, totalMetrics);
+    }
+
+    GtfsRealtime.FeedMessage fm = GtfsRealtime.FeedMessage.parseFrom(payload, getExtensionRegistry());
+    return processFeed(feedId, fm, contentHash, feedMetrics, totalMetrics, _listener);
+  }
+
+  /**
+   * Process a recorded feed message and discard the results, to warm up matching before the first real update.
+   *
+   * Latency is not checked, nothing is reported to the listener, and the output is not kept for reuse. Matches are
+   * still cached, so call {@link #clearCaches} once done.
+   *
+   * @param feedId ID of feed
+   * @param payload serialized FeedMessage
+   * @throws IOException if the payload is not a valid FeedMessage
+   */
+  public void replayFeed(Integer feedId, byte[] payload) throws IOException {
+    GtfsRealtime.FeedMessage fm = GtfsRealtime.FeedMessage.parseFrom(payload, getExtensionRegistry());
+    processFeed(feedId, fm, null, new MatchMetrics(), new MatchMetrics(), null);
+  }
+
+  /**
+   * Get the feeds whose last output is kept, to be reused if the feed has not changed.
+   *
+   * @return IDs of feeds
+   */
+  public Set<Integer> getFeedsWithReusableOutput() {
+    return Collections.unmodifiableSet(_lastProcessedByFeed.keySet());
+  }
+
+  /**
+   * Forget output of previous messages and remembered matches.
+   */
+  public void clearCaches() {
+    _lastProcessedByFeed.clear();
+    _matchCache.invalidateAll();
+  }
+
+  private boolean exceedsLatencyLimit(Integer feedId, MatchMetrics feedMetrics) {
     if (_latencyLimit > 0 && feedMetrics.getLatency() > _latencyLimit) {
       _log.info("Feed {} ignored, too high latency = {}", feedId, feedMetrics.getLatency());
       if (_listener != null)
         _listener.reportMatchesForSubwayFeed(feedId.toString(), feedMetrics, _cloudwatchNamespace);
-      return Collections.emptyList();
+      return true;
     }
+    return false;
+  }
+
+  // Process a feed message which is known to be within the latency limit. Cache output if contentHash is given,
+  // report metrics if listener is given.
+  private List<GtfsRealtime.TripUpdate> processFeed(Integer feedId, GtfsRealtime.FeedMessage fm, HashCode contentHash,
+                                                    MatchMetrics feedMetrics, MatchMetrics totalMetrics,
+                                                    ProxyDataListener listener) {
+
+    long timestamp = fm.getHeader().getTimestamp();
 
     final Map<String, String> realtimeToStaticRouteMap = _realtimeToStaticRouteMapByFeed
             .getOrDefault(feedId, Collections.emptyMap());
 
     int nExpiredTus = 0, nTotalRecords = 0;
 
+    NyctTripId.Names tripIdNames = _staticTripIndex.getTripIdNames();
+
     // Read in trip updates per route. Skip trip updates that have too stale of data.
-    Multimap<String, GtfsRealtime.TripUpdate> tripUpdatesByRoute = ArrayListMultimap.create();
+    // The trip ID of each trip update is parsed here, once, for use in all later steps.
+    Multimap<String, TripUpdateContext> tripUpdatesByRoute = ArrayListMultimap.create();
     for (GtfsRealtime.FeedEntity entity : fm.getEntityList()) {
       if (entity.hasTripUpdate()) {
         GtfsRealtime.TripUpdate tu = entity.getTripUpdate();
-        if (expiredTripUpdate(tu, fm.getHeader().getTimestamp())) {
+        String routeId = tu.getTrip().getRouteId();
+        routeId = realtimeToStaticRouteMap.getOrDefault(routeId, routeId);
+        TripUpdateContext tuc = new TripUpdateContext(tu, routeId, _routesWithReverseRTDirections, tripIdNames,
+                timestamp);
+        if (tuc.isExpired()) {
           nExpiredTus++;
         }
         else {
-          String routeId = tu.getTrip().getRouteId();
-          routeId = realtimeToStaticRouteMap.getOrDefault(routeId, routeId);
-          tripUpdatesByRoute.put(routeId, tu);
+          tripUpdatesByRoute.put(routeId, tuc);
         }
         nTotalRecords++;
       }
     }
+    Date earliestStart = null; // computed if needed
     reportRecordsIn(nTotalRecords, nExpiredTus, totalMetrics, feedMetrics);
 
     List<GtfsRealtime.TripUpdate> ret = Lists.newArrayList();
 
+    Multimap<String, MatchMetrics> metricsByRoute = ArrayListMultimap.create();
+
     for (GtfsRealtimeNYCT.TripReplacementPeriod trp : fm.getHeader()
             .getExtension(GtfsRealtimeNYCT.nyctFeedHeader)
             .getTripReplacementPeriodList()) {
@@ -205,7 +374,9 @@ public class TripUpdateProcessor {
         continue;
       GtfsRealtime.TimeRange range = trp.getReplacementPeriod();
 
-      Date start = range.hasStart() ? new Date(range.getStart() * 1000) : earliestTripStart(tripUpdatesByRoute.values());
+      if (!range.hasStart() && earliestStart == null)
+        earliestStart = earliestTripStart(tripUpdatesByRoute.values());
+      Date start = range.hasStart() ? new Date(range.getStart() * 1000) : earliestStart;
       Date end = range.hasEnd() ? new Date(range.getEnd() * 1000) : new Date(fm.getHeader().getTimestamp() * 1000);
 
       // All route IDs in this trip replacement period
@@ -220,198 +391,260 @@ public class TripUpdateProcessor {
       }
 
       // Kurt's trip matching algorithm (ActivatedTripMatcher) requires calculating currently-active static trips at this point.
-      _tripMatcher.initForFeed(start, end, routeIds);
+      TripMatcher.Context context = _tripMatcher.initForFeed(start, end, routeIds);
 
+      // Routes are independent, so match them in parallel. Collect output in route order.
+      List<ForkJoinTask<RouteOutput>> tasks = new ArrayList<>();
       for (String routeId : routeIds) {
+        Collection<TripUpdateContext> tripUpdates = tripUpdatesByRoute.get(routeId);
+        tasks.add(_matchPool.submit(() -> processRoute(feedId, routeId, tripUpdates, context, trp, start, end,
+                timestamp)));
+      }
 
-        MatchMetrics routeMetrics = new MatchMetrics();
-
-        Multimap<String, TripMatchResult> matchesByTrip = ArrayListMultimap.create();
-        Collection<GtfsRealtime.TripUpdate> tripUpdates = tripUpdatesByRoute.get(routeId);
-        routeMetrics.reportRecordsIn(tripUpdates.size());
-        for (GtfsRealtime.TripUpdate tu : tripUpdates) {
-          GtfsRealtime.TripUpdate.Builder tub = GtfsRealtime.TripUpdate.newBuilder(tu);
-          GtfsRealtime.TripDescriptor.Builder tb = tub.getTripBuilder();
-
-          // rewrite route ID for some routes
-          tb.setRouteId(realtimeToStaticRouteMap.getOrDefault(tb.getRouteId(), tb.getRouteId()));
-
-          // remove timepoints not in GTFS... in some cases this means there may be no STUs left (ex. H shuttle at H19S.)
-          removeTimepoints(tub);
-
-          // get ID which consists of route, direction, origin-departure time, possibly a path identifier (for feed 1.)
-          NyctTripId rtid = NyctTripId.buildFromTripDescriptor(tb, _routesWithReverseRTDirections);
-
-          // If we were able to parse the trip ID, there are various fixes
-          // we may need to apply.
-          if (rtid != null) {
-
-            // Fix stop IDs which don't include direction
-            tub.getStopTimeUpdateBuilderList().forEach(stub -> {
-              if (!(stub.getStopId().endsWith("N") || stub.getStopId().endsWith("S"))) {
-                stub.setStopId(stub.getStopId() + rtid.getDirection());
-              } else if (_routesWithReverseRTDirections.contains(tb.getRouteId())) {
-                String stopId = stub.getStopId();
-                stub.setStopId(stopId.substring(0, stopId.length() - 1) + rtid.getDirection());
-              }
-              if (_stopIdTransformStrategy != null) {
-                String stopId = stub.getStopId();
-                stopId = _stopIdTransformStrategy.transform(rtid.getRouteId(), rtid.getDirection(), stopId);
-                stub.setStopId(stopId);
-              }
-            });
-
-            // Re-set the trip ID to the parsed trip ID; coerces IDs to a uniform format.
-            // If the trip is matched, the ID will be rewritten again to the corresponding static trip ID below.
-            tb.setTripId(rtid.toString());
-          } else {
-            _log.error("invalid trip_id={} train_id={}", tb.getTripId(), tb.getExtension(GtfsRealtimeNYCT.nyctTripDescriptor)
-                    .getTrainId());
-          }
+      for (ForkJoinTask<RouteOutput> task : tasks) {
+        RouteOutput output = task.join();
+        ret.addAll(output.tripUpdates);
+        feedMetrics.add(output.matchMetrics);
+        totalMetrics.add(output.matchMetrics);
+        metricsByRoute.put(output.routeId, output.routeMetrics);
+        if (listener != null)
+          listener.reportMatchesForRoute(output.routeId, output.routeMetrics, _cloudwatchNamespace);
+      }
+    }
 
-          // Some routes have start date set incorrectly
-          if (tb.getStartDate().length() > 8) {
-            tb.setStartDate(fixedStartDate(tb));
-          }
+    if (listener != null)
+      listener.reportMatchesForSubwayFeed(feedId.toString(), feedMetrics, _cloudwatchNamespace);
 
-          TripMatchResult result = _tripMatcher.match(tub, rtid, fm.getHeader().getTimestamp());
-          matchesByTrip.put(result.getTripId(), result);
-        }
+    if (contentHash != null)
+      _lastProcessedByFeed.put(feedId, new ProcessedFeed(timestamp, contentHash, ret, feedMetrics, metricsByRoute));
 
-        // For TUs that match to same trip - possible they should be merged (route D has mid-line relief points where trip ID changes)
-        // If they are NOT merged, then drop the matches for the worse ones
-        for (Collection<TripMatchResult> matches : matchesByTrip.asMap().values()) {
-          if (!tryMergeResult(matches) && matches.size() > 1 && !_allowDuplicates) {
-            List<TripMatchResult> dups = new ArrayList<>(matches);
-            dups.sort(Collections.reverseOrder());
-            TripMatchResult best = dups.get(0);
-            for (int i = 1; i < dups.size(); i++) {
-              TripMatchResult result = dups.get(i);
-              _log.debug("dropping duplicate in static trip={}, RT trip={} ({}). Better trip is {} ({})",
-                      best.getTripId(), result.getRtTripId(), result.getStatus(), best.getRtTripId(), best.getStatus());
-              result.setStatus(Status.NO_MATCH);
-              result.setResult(null);
-            }
-          }
+    _log.info("feed={}, expired TUs={}", feedId, nExpiredTus);
+    return ret;
+  }
+
+  // Match, dedupe, and emit trip updates for a single route, and cancel unmatched static trips.
+  // May run concurrently with other routes of the same feed.
+  private RouteOutput processRoute(Integer feedId, String routeId, Collection<TripUpdateContext> tripUpdates,
+                                   TripMatcher.Context context, GtfsRealtimeNYCT.TripReplacementPeriod trp,
+                                   Date start, Date end, long timestamp) {
+
+    RouteOutput output = new RouteOutput(routeId);
+    MatchMetrics routeMetrics = output.routeMetrics;
+    StopIdNormalizer stopIdNormalizer = getStopIdNormalizer();
+
+    Multimap<String, TripMatchResult> matchesByTrip = ArrayListMultimap.create();
+    routeMetrics.reportRecordsIn(tripUpdates.size());
+    for (TripUpdateContext tuc : tripUpdates) {
+      GtfsRealtime.TripUpdate.Builder tub = GtfsRealtime.TripUpdate.newBuilder(tuc.getTripUpdate());
+      GtfsRealtime.TripDescriptor.Builder tb = tub.getTripBuilder();
+
+      // rewrite route ID for some routes
+      tb.setRouteId(tuc.getRouteId());
+
+      // remove timepoints not in GTFS... in some cases this means there may be no STUs left (ex. H shuttle at H19S.)
+      removeTimepoints(tub);
+
+      // ID which consists of route, direction, origin-departure time, possibly a path identifier (for feed 1.)
+      NyctTripId rtid = tuc.getRtid();
+
+      // If we were able to parse the trip ID, there are various fixes
+      // we may need to apply.
+      if (rtid != null) {
+
+        // Fix stop IDs which don't include direction, or have reversed direction, and apply stop ID transform
+        StopIdNormalizer.Table stopIds = stopIdNormalizer.getTable(tb.getRouteId(), rtid);
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate.Builder stub : tub.getStopTimeUpdateBuilderList()) {
+          String stopId = stub.getStopId();
+          String normalized = stopIds.normalize(stopId);
+          if (!normalized.equals(stopId))
+            stub.setStopId(normalized);
         }
 
-        Set<String> matchedTripIds = new HashSet<>();
-        // Read out results of matching. If there is a match, rewrite TU's trip ID. Add TU to return list.
-        for (TripMatchResult result : matchesByTrip.values()) {
-          if (!result.getStatus().equals(Status.MERGED)) {
-            GtfsRealtime.TripUpdate.Builder tub = result.getTripUpdateBuilder();
-            GtfsRealtime.TripDescriptor.Builder tb = tub.getTripBuilder();
-            if (result.hasResult() && (result.getTripUpdate().getStopTimeUpdateCount() == 0 || !result.stopsMatchToEnd())) {
-              _log.info("no stop match rt={} static={} {}",
-                      result.getTripUpdate().getTrip().getTripId(), result.getResult().getTrip().getId().getId(),
-                      (result.getResult().getStopTimes().get(0).getDepartureTime() / 60) * 100);
-              result.setStatus(Status.NO_MATCH);
-              result.setResult(null);
-            }
-            if (result.hasResult()) {
-              ActivatedTrip at = result.getResult();
-              String staticTripId = at.getTrip().getId().getId();
-              _log.debug("matched {} -> {}", tb.getTripId(), staticTripId);
-              tb.setTripId(staticTripId);
-              removeTimepoints(at, tub);
-              matchedTripIds.add(staticTripId);
-            } else {
-              _log.debug("unmatched: {} due to {}", tub.getTrip().getTripId(), result.getStatus());
-              tb.setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED);
-              // ignore ADDED trips without stops
-              if (tub.getStopTimeUpdateCount() == 0)
-                continue;
-              // Trip Headsign
-              String stopId = result.getRtLastStop();
-              String tripHeadsign = _tripActivator.getStopNameForId(stopId);
-              if(StringUtils.isNotBlank(tripHeadsign)) {
-                GtfsRealtimeOneBusAway.OneBusAwayTripUpdate obaTripUpdate = GtfsRealtimeOneBusAway.OneBusAwayTripUpdate
-                        .newBuilder().setTripHeadsign(tripHeadsign).build();
-                tub.setExtension(GtfsRealtimeOneBusAway.obaTripUpdate, obaTripUpdate);
-
-                //Stop Headsign
-                if(_directionsService !=null)
-                  _directionsService.fillStopHeadSigns(tub.getStopTimeUpdateBuilderList());
-              }
-            }
-            tub.setTimestamp(timestamp);
-            TripUpdate tripUpdate = tub.build();
-            ret.add(tripUpdate);
-          }
+        // Re-set the trip ID to the parsed trip ID; coerces IDs to a uniform format.
+        // If the trip is matched, the ID will be rewritten again to the corresponding static trip ID below.
+        tb.setTripId(rtid.toString());
+      } else {
+        _log.error("invalid trip_id={} train_id={}", tb.getTripId(), tb.getExtension(GtfsRealtimeNYCT.nyctTripDescriptor)
+                .getTrainId());
+      }
+
+      // Some routes have start date set incorrectly
+      if (tb.getStartDate().length() > 8) {
+        tb.setStartDate(tuc.getStartDate());
+      }
+
+      TripMatchResult result = match(feedId, context, tub, rtid, timestamp);
+      result.setRtid(rtid);
+      matchesByTrip.put(result.getTripId(), result);
+    }
 
-          routeMetrics.add(result);
-          feedMetrics.add(result);
-          totalMetrics.add(result);
+    // For TUs that match to same trip - possible they should be merged (route D has mid-line relief points where trip ID changes)
+    // If they are NOT merged, then drop the matches for the worse ones
+    for (Collection<TripMatchResult> matches : matchesByTrip.asMap().values()) {
+      if (!tryMergeResult(matches) && matches.size() > 1 && !_allowDuplicates) {
+        List<TripMatchResult> dups = new ArrayList<>(matches);
+        dups.sort(Collections.reverseOrder());
+        TripMatchResult best = dups.get(0);
+        for (int i = 1; i < dups.size(); i++) {
+          TripMatchResult result = dups.get(i);
+          _log.debug("dropping duplicate in static trip={}, RT trip={} ({}). Better trip is {} ({})",
+                  best.getTripId(), result.getRtTripId(), result.getStatus(), best.getRtTripId(), best.getStatus());
+          result.setStatus(Status.NO_MATCH);
+          result.setResult(null);
         }
+      }
+    }
 
-        if (_cancelUnmatchedTrips) {
-          Iterator<ActivatedTrip> staticTrips = _tripActivator.getTripsForRangeAndRoute(start, end, routeId).iterator();
-          while (staticTrips.hasNext()) {
-            ActivatedTrip at = staticTrips.next();
-            if (!matchedTripIds.contains(at.getTrip().getId().getId())) {
-              long time = fm.getHeader().getTimestamp();
-              if (at.activeFor(trp, time)) {
-                TripUpdate.Builder tub = TripUpdate.newBuilder();
-                TripDescriptor.Builder tdb = tub.getTripBuilder();
-                tdb.setTripId(at.getTrip().getId().getId());
-                tdb.setRouteId(at.getTrip().getRoute().getId().getId());
-                tdb.setStartDate(at.getServiceDate().getAsString());
-                tdb.setScheduleRelationship(ScheduleRelationship.CANCELED);
-                ret.add(tub.build());
-
-                routeMetrics.addCancelled();
-                feedMetrics.addCancelled();
-                totalMetrics.addCancelled();
-              }
-            }
+    Set<String> matchedTripIds = new HashSet<>();
+    // Read out results of matching. If there is a match, rewrite TU's trip ID. Add TU to return list.
+    for (TripMatchResult result : matchesByTrip.values()) {
+      if (!result.getStatus().equals(Status.MERGED)) {
+        GtfsRealtime.TripUpdate.Builder tub = result.getTripUpdateBuilder();
+        GtfsRealtime.TripDescriptor.Builder tb = tub.getTripBuilder();
+        if (result.hasResult() && (result.getTripUpdate().getStopTimeUpdateCount() == 0 || !result.stopsMatchToEnd())) {
+          _log.info("no stop match rt={} static={} {}",
+                  result.getTripUpdate().getTrip().getTripId(), result.getResult().getTrip().getId().getId(),
+                  (result.getResult().getStaticTrip().getStartTime() / 60) * 100);
+          result.setStatus(Status.NO_MATCH);
+          result.setResult(null);
+        }
+        if (result.hasResult()) {
+          ActivatedTrip at = result.getResult();
+          String staticTripId = at.getTrip().getId().getId();
+          _log.debug("matched {} -> {}", tb.getTripId(), staticTripId);
+          tb.setTripId(staticTripId);
+          removeTimepoints(at, tub);
+          matchedTripIds.add(staticTripId);
+        } else {
+          _log.debug("unmatched: {} due to {}", tub.getTrip().getTripId(), result.getStatus());
+          tb.setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED);
+          // ignore ADDED trips without stops
+          if (tub.getStopTimeUpdateCount() == 0)
+            continue;
+          // Trip Headsign
+          String stopId = result.getRtLastStop();
+          String tripHeadsign = _tripActivator.getStopNameForId(stopId);
+          if(StringUtils.isNotBlank(tripHeadsign)) {
+            GtfsRealtimeOneBusAway.OneBusAwayTripUpdate obaTripUpdate = GtfsRealtimeOneBusAway.OneBusAwayTripUpdate
+                    .newBuilder().setTripHeadsign(tripHeadsign).build();
+            tub.setExtension(GtfsRealtimeOneBusAway.obaTripUpdate, obaTripUpdate);
+
+            //Stop Headsign
+            if(_directionsService !=null)
+              _directionsService.fillStopHeadSigns(tub.getStopTimeUpdateBuilderList());
           }
         }
+        tub.setTimestamp(timestamp);
+        TripUpdate tripUpdate = tub.build();
+        output.tripUpdates.add(tripUpdate);
+      }
 
-        if (_listener != null)
-          _listener.reportMatchesForRoute(routeId, routeMetrics, _cloudwatchNamespace);
+      routeMetrics.add(result);
+      output.matchMetrics.add(result);
+    }
+
+    if (_cancelUnmatchedTrips) {
+      Iterator<ActivatedTrip> staticTrips = _tripActivator.getTripsForRangeAndRoute(start, end, routeId).iterator();
+      while (staticTrips.hasNext()) {
+        ActivatedTrip at = staticTrips.next();
+        if (!matchedTripIds.contains(at.getTrip().getId().getId())) {
+          if (at.activeFor(trp, timestamp)) {
+            TripUpdate.Builder tub = TripUpdate.newBuilder();
+            TripDescriptor.Builder tdb = tub.getTripBuilder();
+            tdb.setTripId(at.getTrip().getId().getId());
+            tdb.setRouteId(at.getTrip().getRoute().getId().getId());
+            tdb.setStartDate(at.getServiceDate().getAsString());
+            tdb.setScheduleRelationship(ScheduleRelationship.CANCELED);
+            output.tripUpdates.add(tub.build());
+
+            routeMetrics.addCancelled();
+            output.matchMetrics.addCancelled();
+          }
         }
       }
+    }
 
-    if (_listener != null)
-      _listener.reportMatchesForSubwayFeed(feedId.toString(), feedMetrics, _cloudwatchNamespace);
+    return output;
+  }
 
-    _log.info("feed={}, expired TUs={}", feedId, nExpiredTus);
-    return ret;
+  private synchronized StopIdNormalizer getStopIdNormalizer() {
+    if (_stopIdNormalizer == null)
+      _stopIdNormalizer = new StopIdNormalizer(_staticTripIndex.getAllStopIds(), _staticTripIndex.getAllRouteIds(),
+              _routesWithReverseRTDirections, _stopIdTransformStrategy);
+    return _stopIdNormalizer;
   }
 
-  // TU is *expired* if the latest arrival or departure is 5 minutes before feed's timestamp
-  private static boolean expiredTripUpdate(GtfsRealtime.TripUpdate tu, long timestamp) {
-    OptionalLong latestTime = tu.getStopTimeUpdateList()
-            .stream()
-            .map(stu -> stu.hasDeparture() ? stu.getDeparture() : stu.getArrival())
-            .filter(GtfsRealtime.TripUpdate.StopTimeEvent::hasTime)
-            .mapToLong(GtfsRealtime.TripUpdate.StopTimeEvent::getTime).max();
-    return latestTime.isPresent() && latestTime.getAsLong() < timestamp - 300;
+  // Match a TU. If it was matched in a previous cycle and the matcher would still accept that match, reuse it.
+  private TripMatchResult match(Integer feedId, TripMatcher.Context context, GtfsRealtime.TripUpdate.Builder tub,
+                                NyctTripId rtid, long timestamp) {
+    if (rtid == null)
+      return _tripMatcher.match(context, tub, rtid, timestamp);
+
+    String key = feedId + ":" + tub.getTrip().getTripId() + ":" + tub.getTrip().getStartDate();
+    CachedMatch cached = _matchCache.getIfPresent(key);
+    if (cached != null) {
+      TripMatchResult result = new TripMatchResult(tub, cached.status, cached.trip, cached.delta);
+      if (_tripMatcher.acceptsMatch(result))
+        return result;
+      _matchCache.invalidate(key);
+    }
+
+    TripMatchResult result = _tripMatcher.match(context, tub, rtid, timestamp);
+    if (result.hasResult())
+      _matchCache.put(key, new CachedMatch(result));
+    return result;
+  }
+
+  private Cache<String, CachedMatch> buildMatchCache() {
+    return CacheBuilder.newBuilder()
+            .maximumSize(_matchCacheSize)
+            .expireAfterAccess(_matchCacheTtl, TimeUnit.SECONDS)
+            .build();
+  }
+
+  // Report metrics of a previously processed feed again as this cycle's metrics, and return its output.
+  private List<GtfsRealtime.TripUpdate> reuseProcessedFeed(Integer feedId, ProcessedFeed last, MatchMetrics feedMetrics,
+                                                          MatchMetrics totalMetrics) {
+    feedMetrics.add(last.feedMetrics);
+    totalMetrics.add(last.feedMetrics);
+    if (_listener != null) {
+      for (Map.Entry<String, MatchMetrics> e : last.metricsByRoute.entries())
+        _listener.reportMatchesForRoute(e.getKey(), e.getValue(), _cloudwatchNamespace);
+      _listener.reportMatchesForSubwayFeed(feedId.toString(), feedMetrics, _cloudwatchNamespace);
+    }
+    return last.tripUpdates;
   }
 
   // Remove StopTimeUpdate from TU if the stop is not in trip's list of stops.
   // NOTE this will remove timepoints, but remove additional stops for express trips that are running local.
   private void removeTimepoints(ActivatedTrip trip, GtfsRealtime.TripUpdate.Builder tripUpdate) {
-    Set<String> stopIds = trip.getStopTimes().stream()
-            .map(s -> s.getStop().getId().getId()).collect(Collectors.toSet());
-    for(int i = 0; i < tripUpdate.getStopTimeUpdateCount(); i++) {
-      String id = tripUpdate.getStopTimeUpdate(i).getStopId();
-      if (!stopIds.contains(id)) {
-        tripUpdate.removeStopTimeUpdate(i);
-        i--;
-      }
-    }
+    StopPattern pattern = trip.getStaticTrip().getPattern();
+    filterStopTimeUpdates(tripUpdate, pattern::containsStop);
   }
 
   // remove all stops NOT in static data
   private void removeTimepoints(TripUpdate.Builder tripUpdate) {
-    for(int i = 0; i < tripUpdate.getStopTimeUpdateCount(); i++) {
-      String id = tripUpdate.getStopTimeUpdate(i).getStopId();
-      if (!_tripActivator.isStopInStaticData(id)) {
-        tripUpdate.removeStopTimeUpdate(i);
-        i--;
+    filterStopTimeUpdates(tripUpdate, _tripActivator::isStopInStaticData);
+  }
+
+  // Keep only the StopTimeUpdates whose stop passes the filter. The list is rebuilt in one pass, and only if a stop
+  // is removed.
+  private static void filterStopTimeUpdates(TripUpdate.Builder tripUpdate, Predicate<String> keepStop) {
+    List<StopTimeUpdate> stopTimeUpdates = tripUpdate.getStopTimeUpdateList();
+    List<StopTimeUpdate> kept = null;
+    for (int i = 0; i < stopTimeUpdates.size(); i++) {
+      StopTimeUpdate stu = stopTimeUpdates.get(i);
+      if (keepStop.test(stu.getStopId())) {
+        if (kept != null)
+          kept.add(stu);
+      } else if (kept == null) {
+        kept = new ArrayList<>(stopTimeUpdates.subList(0, i));
       }
     }
+    if (kept != null) {
+      tripUpdate.clearStopTimeUpdate();
+      tripUpdate.addAllStopTimeUpdate(kept);
+    }
   }
 
   // Due to a bug in I-TRAC's GTFS-RT output, there are distinct trip updates
@@ -427,8 +660,10 @@ public class TripUpdateProcessor {
   }
 
   private TripMatchResult mergedResult(TripMatchResult first, TripMatchResult second) {
-    NyctTripId firstId = NyctTripId.buildFromTripDescriptor(first.getTripUpdate().getTrip(), _routesWithReverseRTDirections);
-    NyctTripId secondId = NyctTripId.buildFromTripDescriptor(second.getTripUpdate().getTrip(), _routesWithReverseRTDirections);
+    NyctTripId firstId = first.getRtid();
+    NyctTripId secondId = second.getRtid();
+    if (firstId == null || secondId == null)
+      return null;
     if (firstId.getOriginDepartureTime() > secondId.getOriginDepartureTime())
       return mergedResult(second, first);
 
@@ -468,4 +703,51 @@ public class TripUpdateProcessor {
       m.reportExpiredUpdates(expiredUpdates);
     }
   }
+
+  private static class ProcessedFeed {
+    private final long timestamp;
+    private final HashCode contentHash;
+    private final List<GtfsRealtime.TripUpdate> tripUpdates;
+    private final MatchMetrics feedMetrics;
+    private final Multimap<String, MatchMetrics> metricsByRoute;
+
+    ProcessedFeed(long timestamp, HashCode contentHash, List<GtfsRealtime.TripUpdate> tripUpdates,
+                  MatchMetrics feedMetrics, Multimap<String, MatchMetrics> metricsByRoute) {
+      this.timestamp = timestamp;
+      this.contentHash = contentHash;
+      this.tripUpdates = tripUpdates;
+      this.feedMetrics = feedMetrics;
+      this.metricsByRoute = metricsByRoute;
+    }
+
+    boolean isFor(long timestamp, HashCode contentHash) {
+      return this.timestamp == timestamp && this.contentHash.equals(contentHash);
+    }
+  }
+
+  // Output of processing a single route.
+  private static class RouteOutput {
+    private final String routeId;
+    private final List<GtfsRealtime.TripUpdate> tripUpdates = new ArrayList<>();
+    private final MatchMetrics routeMetrics = new MatchMetrics();
+    // metrics of matches and cancellations only, to be added to feed and total metrics
+    private final MatchMetrics matchMetrics = new MatchMetrics();
+
+    RouteOutput(String routeId) {
+      this.routeId = routeId;
+    }
+  }
+
+  // Result of matching, as returned by the matcher. (TripMatchResult itself is modified when processing the match.)
+  private static class CachedMatch {
+    private final Status status;
+    private final ActivatedTrip trip;
+    private final int delta;
+
+    CachedMatch(TripMatchResult result) {
+      this.status = result.getStatus();
+      this.trip = result.getResult();
+      this.delta = result.getDelta();
+    }
+  }
 }
@@ -15,12 +15,20 @@
  */
 package com.kurtraschke.nyctrtproxy.util;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 import com.google.transit.realtime.GtfsRealtime;
+import com.google.transit.realtime.GtfsRealtimeNYCT;
 import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.TripUpdateContext;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.Collection;
 import java.util.Date;
@@ -36,32 +44,101 @@ public class NycRealtimeUtil {
 
   private static final Logger _log = LoggerFactory.getLogger(NycRealtimeUtil.class);
 
+  private static final ExtensionRegistry _extensionRegistry;
+
+  static {
+    ExtensionRegistry registry = ExtensionRegistry.newInstance();
+    registry.add(GtfsRealtimeNYCT.nyctFeedHeader);
+    registry.add(GtfsRealtimeNYCT.nyctTripDescriptor);
+    registry.add(GtfsRealtimeNYCT.nyctStopTimeUpdate);
+    _extensionRegistry = registry.getUnmodifiable();
+  }
+
+  /**
+   * Get the registry of NYCT extensions to GTFS-realtime, for parsing NYCT feeds.
+   *
+   * @return shared, unmodifiable registry
+   */
+  public static ExtensionRegistry getExtensionRegistry() {
+    return _extensionRegistry;
+  }
+
   public static String fixedStartDate(GtfsRealtime.TripDescriptorOrBuilder td) {
     return td.getStartDate().substring(0, 10).replace("-", "");
   }
 
-  public static Date earliestTripStart(Collection<GtfsRealtime.TripUpdate> updates) {
-    OptionalLong time = updates.stream()
-            .mapToLong(tu -> tripUpdateStart(tu))
+  /**
+   * Get the earliest start time of trip updates with a valid trip ID.
+   *
+   * @param tripUpdates parsed trip updates
+   * @return earliest start time, or null if no trip update has a valid trip ID
+   */
+  public static Date earliestTripStart(Collection<TripUpdateContext> tripUpdates) {
+    OptionalLong time = tripUpdates.stream()
+            .mapToLong(TripUpdateContext::getStartTime)
             .filter(n -> n > 0).min();
     return time.isPresent() ? new Date(time.getAsLong()) : null;
   }
 
-  // take a TripUpdate and return the epoch time in millis that this trip started
-  private static long tripUpdateStart(GtfsRealtime.TripUpdate tu) {
-    GtfsRealtime.TripDescriptor td = tu.getTrip();
-    NyctTripId rtid = NyctTripId.buildFromTripDescriptor(td);
+  /**
+   * Compute the time a realtime trip started, from its origin-departure time and start date.
+   *
+   * @param rtid parsed trip ID, or null
+   * @param startDate start date in YYYYMMDD format
+   * @return epoch time in millis, -1 if rtid is null, or Long.MAX_VALUE if the start date is invalid
+   */
+  public static long tripStartTime(NyctTripId rtid, String startDate) {
     if (rtid == null)
       return -1;
     int minHds = rtid.getOriginDepartureTime();
-    String startDate = td.getStartDate().length() > 8 ? fixedStartDate(td) : td.getStartDate();
     ServiceDate sd;
     try {
       sd = ServiceDate.parseString(startDate);
     } catch (ParseException e) {
-      _log.error("Error parsing trip update={}, exception={}", tu, e);
+      _log.error("Error parsing start date={} of trip={}, exception={}", startDate, rtid, e);
       return Long.MAX_VALUE;
     }
     return sd.getAsDate().getTime() + (minHds * 600); // 600 millis in 1/100 minute
   }
+
+  /**
+   * Read the header of a serialized FeedMessage without parsing its entities.
+   *
+   * Extensions of the header are not parsed.
+   *
+   * @param payload serialized FeedMessage
+   * @return feed header
+   * @throws IOException if the payload is not a valid FeedMessage
+   */
+  public static GtfsRealtime.FeedHeader readFeedHeader(byte[] payload) throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(payload);
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      if (WireFormat.getTagFieldNumber(tag) == GtfsRealtime.FeedMessage.HEADER_FIELD_NUMBER) {
+        GtfsRealtime.FeedHeader.Builder header = GtfsRealtime.FeedHeader.newBuilder();
+        input.readMessage(header, ExtensionRegistryLite.getEmptyRegistry());
+        return header.build();
+      }
+      if (!input.skipField(tag))
+        break;
+    }
+    throw new InvalidProtocolBufferException("FeedMessage has no header");
+  }
+
+  /**
+   * Check whether a serialized FeedMessage has any entities, without parsing them.
+   *
+   * @param payload serialized FeedMessage
+   * @return true if there is at least one entity, false otherwise
+   * @throws IOException if the payload is not a valid FeedMessage
+   */
+  public static boolean hasEntities(byte[] payload) throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(payload);
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      if (WireFormat.getTagFieldNumber(tag) == GtfsRealtime.FeedMessage.ENTITY_FIELD_NUMBER)
+        return true;
+      if (!input.skipField(tag))
+        break;
+    }
+    return false;
+  }
 }
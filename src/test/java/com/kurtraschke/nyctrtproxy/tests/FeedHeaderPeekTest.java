@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.common.io.ByteStreams;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.hasEntities;
+import static com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil.readFeedHeader;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FeedHeaderPeekTest {
+
+  private static final String[] FILES = { "1_2017-03-13.pb", "1_2018-05-09.pb", "1_peak_sample.pb", "2_2017-03-13.pb",
+          "11_2017-03-13.pb", "11_2017-03-21.pb", "16_2017-03-13.pb", "21_2017-03-13.pb", "21_2017-04-20.pb",
+          "51_2018-05-09.pb" };
+
+  @Test
+  public void testPeekMatchesFullParse() throws IOException {
+    for (String file : FILES) {
+      byte[] payload = readPayload(file);
+      FeedMessage msg = FeedMessage.parseFrom(payload);
+
+      FeedHeader header = readFeedHeader(payload);
+      assertEquals(file, msg.getHeader().getTimestamp(), header.getTimestamp());
+      assertEquals(file, msg.getHeader().getGtfsRealtimeVersion(), header.getGtfsRealtimeVersion());
+      assertEquals(file, msg.getEntityCount() > 0, hasEntities(payload));
+    }
+  }
+
+  @Test
+  public void testEmptyFeed() throws IOException {
+    FeedMessage msg = FeedMessage.newBuilder()
+            .setHeader(FeedHeader.newBuilder().setGtfsRealtimeVersion("1.0").setTimestamp(1494345600))
+            .build();
+    byte[] payload = msg.toByteArray();
+    assertEquals(1494345600, readFeedHeader(payload).getTimestamp());
+    assertFalse(hasEntities(payload));
+  }
+
+  private byte[] readPayload(String file) throws IOException {
+    try (InputStream stream = this.getClass().getResourceAsStream("/" + file)) {
+      return ByteStreams.toByteArray(stream);
+    }
+  }
+}
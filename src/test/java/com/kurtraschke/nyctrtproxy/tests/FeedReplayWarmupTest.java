@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime;
+import com.kurtraschke.nyctrtproxy.ProxyProvider;
+import com.kurtraschke.nyctrtproxy.services.FeedReplayWarmup;
+import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import junit.framework.TestCase;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.Test;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that recorded feeds are moved to the current week and replayed through the processor, without output.
+ */
+public class FeedReplayWarmupTest extends RtTestRunner {
+
+  @Inject
+  private TripUpdateProcessor _processor;
+
+  @Test
+  public void testMoveToThisWeek() throws Exception {
+    GtfsRealtime.FeedMessage recorded = readFeedMessage("1_2017-03-13.pb");
+    ZoneId zone = _processor.getStaticTripIndex().getTimeZone().toZoneId();
+    GtfsRealtime.FeedMessage moved = FeedReplayWarmup.moveToThisWeek(recorded, zone);
+
+    LocalDate before = Instant.ofEpochSecond(recorded.getHeader().getTimestamp()).atZone(zone).toLocalDate();
+    LocalDate after = Instant.ofEpochSecond(moved.getHeader().getTimestamp()).atZone(zone).toLocalDate();
+    assertEquals(before.getDayOfWeek(), after.getDayOfWeek());
+    assertTrue(Math.abs(ChronoUnit.DAYS.between(after, LocalDate.now(zone))) <= 4);
+
+    assertMovedByWeeks(recorded, moved, ChronoUnit.WEEKS.between(before, after), zone);
+  }
+
+  @Test
+  public void testMoveAcrossDaylightSaving() throws Exception {
+    // recorded 2017-03-13, the day after clocks went forward; move back to standard time and forward into the fall
+    GtfsRealtime.FeedMessage recorded = readFeedMessage("1_2017-03-13.pb");
+    ZoneId zone = _processor.getStaticTripIndex().getTimeZone().toZoneId();
+    assertMovedByWeeks(recorded, FeedReplayWarmup.moveByWeeks(recorded, -1, zone), -1, zone);
+    assertMovedByWeeks(recorded, FeedReplayWarmup.moveByWeeks(recorded, 34, zone), 34, zone);
+  }
+
+  private static void assertMovedByWeeks(GtfsRealtime.FeedMessage recorded, GtfsRealtime.FeedMessage moved,
+                                         long weeks, ZoneId zone) {
+    assertMovedByWeeks(recorded.getHeader().getTimestamp(), moved.getHeader().getTimestamp(), weeks, zone);
+    assertEquals(recorded.getEntityCount(), moved.getEntityCount());
+    for (int i = 0; i < recorded.getEntityCount(); i++) {
+      if (!recorded.getEntity(i).hasTripUpdate())
+        continue;
+      GtfsRealtime.TripUpdate tu = recorded.getEntity(i).getTripUpdate();
+      GtfsRealtime.TripUpdate movedTu = moved.getEntity(i).getTripUpdate();
+      assertEquals(tu.getTrip().getTripId(), movedTu.getTrip().getTripId());
+      String startDate = tu.getTrip().getStartDate();
+      if (startDate.length() == 8) {
+        LocalDate sd = LocalDate.parse(startDate, DateTimeFormatter.BASIC_ISO_DATE);
+        assertEquals(sd.plusWeeks(weeks).format(DateTimeFormatter.BASIC_ISO_DATE),
+                movedTu.getTrip().getStartDate());
+      }
+      for (int j = 0; j < tu.getStopTimeUpdateCount(); j++) {
+        if (tu.getStopTimeUpdate(j).getArrival().hasTime())
+          assertMovedByWeeks(tu.getStopTimeUpdate(j).getArrival().getTime(),
+                  movedTu.getStopTimeUpdate(j).getArrival().getTime(), weeks, zone);
+      }
+    }
+  }
+
+  // same local time of day, whole weeks later
+  private static void assertMovedByWeeks(long time, long movedTime, long weeks, ZoneId zone) {
+    LocalDateTime before = Instant.ofEpochSecond(time).atZone(zone).toLocalDateTime();
+    LocalDateTime after = Instant.ofEpochSecond(movedTime).atZone(zone).toLocalDateTime();
+    assertEquals(before.plusWeeks(weeks), after);
+  }
+
+  @Test
+  public void testReplay() {
+    File dir = new File(TestCase.class.getResource("/1_2017-03-13.pb").getFile()).getParentFile();
+    File[] recordings = dir.listFiles((d, name) -> name.endsWith(".pb"));
+
+    FeedReplayWarmup warmup = new FeedReplayWarmup();
+    warmup.setTripUpdateProcessor(_processor);
+    warmup.setWarmupPath(dir);
+    warmup.setIterations(2);
+    assertEquals(2 * recordings.length, warmup.run());
+  }
+
+  @Test
+  public void testWarmupOnStart() throws Exception {
+    File dir = new File(TestCase.class.getResource("/1_2017-03-13.pb").getFile()).getParentFile();
+    AtomicReference<String> warmupThread = new AtomicReference<>();
+    FeedReplayWarmup warmup = new FeedReplayWarmup() {
+      @Override
+      public int run() {
+        warmupThread.set(Thread.currentThread().getName());
+        return super.run();
+      }
+    };
+    warmup.setTripUpdateProcessor(_processor);
+    warmup.setWarmupPath(dir);
+    warmup.setIterations(1);
+
+    CountingSink sink = new CountingSink();
+    ProxyProvider provider = new ProxyProvider();
+    provider.setTripUpdatesSink(sink);
+    provider.setHttpClientConnectionManager(new PoolingHttpClientConnectionManager());
+    provider.setScheduledExecutorService(new NoUpdatesExecutor());
+    provider.setTripUpdateProcessor(_processor);
+    provider.setFeedReplayWarmup(warmup);
+    provider.start();
+    provider.stop();
+
+    assertEquals(NoUpdatesExecutor.THREAD_NAME, warmupThread.get());
+    assertTrue(_processor.getFeedsWithReusableOutput().isEmpty());
+    assertEquals(0, sink.nUpdates.get());
+  }
+
+  @Test
+  public void testDisabled() {
+    FeedReplayWarmup warmup = new FeedReplayWarmup();
+    warmup.setTripUpdateProcessor(_processor);
+    assertEquals(0, warmup.run());
+  }
+
+  // Update thread which runs warm-up, but not the periodic update, which would fetch feeds.
+  private static class NoUpdatesExecutor extends ScheduledThreadPoolExecutor {
+    private static final String THREAD_NAME = "update";
+
+    NoUpdatesExecutor() {
+      super(1, r -> new Thread(r, THREAD_NAME));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+      return schedule(() -> {}, delay, unit);
+    }
+  }
+
+  private static class CountingSink implements GtfsRealtimeSink {
+    private final AtomicInteger nUpdates = new AtomicInteger();
+
+    @Override
+    public void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+      nUpdates.incrementAndGet();
+    }
+
+    @Override
+    public void handleIncrementalUpdate(GtfsRealtimeIncrementalUpdate update) {
+      nUpdates.incrementAndGet();
+    }
+  }
+}
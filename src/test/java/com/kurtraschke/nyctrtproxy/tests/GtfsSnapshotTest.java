@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.services.GtfsRelationalDaoProvider;
+import com.kurtraschke.nyctrtproxy.services.GtfsSnapshot;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class GtfsSnapshotTest extends RtTestRunner {
+
+  @Inject
+  private GtfsRelationalDao _dao;
+
+  @Inject
+  private CalendarServiceData _csd;
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    GtfsRelationalDao gtfs = getGtfsWithStopTimes();
+    File gtfsPath = new File(TestCase.class.getResource("/google_transit.zip").getFile());
+    File snapshotPath = File.createTempFile("gtfs", ".snapshot");
+    try {
+      GtfsSnapshot.write(snapshotPath, gtfsPath, null, gtfs, _csd);
+      assertTrue(GtfsSnapshot.isCurrent(snapshotPath, gtfsPath, null));
+
+      GtfsSnapshot.SnapshotDao snapshot = GtfsSnapshot.read(snapshotPath);
+
+      assertEquals(_dao.getAllAgencies().size(), snapshot.getAllAgencies().size());
+      assertEquals(_dao.getAllRoutes().size(), snapshot.getAllRoutes().size());
+      assertEquals(_dao.getAllStops().size(), snapshot.getAllStops().size());
+      assertEquals(_dao.getAllTrips().size(), snapshot.getAllTrips().size());
+
+      for (Stop stop : _dao.getAllStops()) {
+        Stop copy = snapshot.getStopForId(stop.getId());
+        assertNotNull(copy);
+        assertEquals(stop.getName(), copy.getName());
+        assertEquals(stop.getParentStation(), copy.getParentStation());
+      }
+
+      for (Trip trip : gtfs.getAllTrips()) {
+        Trip copy = snapshot.getTripForId(trip.getId());
+        assertNotNull(copy);
+        assertEquals(trip.getRoute().getId(), copy.getRoute().getId());
+        assertEquals(trip.getServiceId(), copy.getServiceId());
+        assertEquals(trip.getDirectionId(), copy.getDirectionId());
+        assertEquals(trip.getMtaTripId(), copy.getMtaTripId());
+
+        List<StopTime> stopTimes = gtfs.getStopTimesForTrip(trip);
+        List<StopTime> copyStopTimes = snapshot.getStopTimesForTrip(copy);
+        assertEquals(stopTimes.size(), copyStopTimes.size());
+        for (int i = 0; i < stopTimes.size(); i++) {
+          assertEquals(stopTimes.get(i).getStop().getId(), copyStopTimes.get(i).getStop().getId());
+          assertEquals(stopTimes.get(i).getArrivalTime(), copyStopTimes.get(i).getArrivalTime());
+          assertEquals(stopTimes.get(i).getDepartureTime(), copyStopTimes.get(i).getDepartureTime());
+        }
+      }
+
+      CalendarServiceData csd = snapshot.getCalendarServiceData();
+      assertEquals(_csd.getServiceIds(), csd.getServiceIds());
+      for (AgencyAndId serviceId : _csd.getServiceIds())
+        assertEquals(_csd.getServiceDatesForServiceId(serviceId), csd.getServiceDatesForServiceId(serviceId));
+      assertEquals(_csd.getTimeZoneForAgencyId(_agencyId), csd.getTimeZoneForAgencyId(_agencyId));
+    } finally {
+      snapshotPath.delete();
+    }
+  }
+
+  @Test
+  public void testStaleSnapshot() throws IOException {
+    File gtfsPath = File.createTempFile("gtfs", ".zip");
+    File snapshotPath = File.createTempFile("gtfs", ".snapshot");
+    try {
+      GtfsSnapshot.write(snapshotPath, gtfsPath, null, _dao, _csd);
+      assertTrue(GtfsSnapshot.isCurrent(snapshotPath, gtfsPath, null));
+      assertTrue(gtfsPath.setLastModified(gtfsPath.lastModified() - 60000));
+      assertFalse(GtfsSnapshot.isCurrent(snapshotPath, gtfsPath, null));
+    } finally {
+      gtfsPath.delete();
+      snapshotPath.delete();
+    }
+  }
+
+  @Test
+  public void testFilteredSnapshot() throws IOException {
+    File gtfsPath = new File(TestCase.class.getResource("/google_transit.zip").getFile());
+    File snapshotPath = File.createTempFile("gtfs", ".snapshot");
+    GtfsRelationalDaoProvider provider = new GtfsRelationalDaoProvider();
+    provider.setGtfsPath(gtfsPath);
+    provider.setRoutes("[\"1\", \"2\", \"GS\"]");
+    GtfsRelationalDao filtered = provider.get();
+    Set<String> routes = new HashSet<>(Arrays.asList("1", "2", "GS"));
+    try {
+      GtfsSnapshot.write(snapshotPath, gtfsPath, routes, filtered, _csd);
+      assertTrue(GtfsSnapshot.isCurrent(snapshotPath, gtfsPath, new HashSet<>(Arrays.asList("GS", "2", "1"))));
+      assertFalse(GtfsSnapshot.isCurrent(snapshotPath, gtfsPath, new HashSet<>(Arrays.asList("1", "2"))));
+      assertFalse(GtfsSnapshot.isCurrent(snapshotPath, gtfsPath, null));
+
+      GtfsSnapshot.SnapshotDao snapshot = GtfsSnapshot.read(snapshotPath);
+      assertEquals(filtered.getAllRoutes().size(), snapshot.getAllRoutes().size());
+      for (Route route : snapshot.getAllRoutes())
+        assertTrue(routes.contains(route.getId().getId()));
+      assertEquals(filtered.getAllTrips().size(), snapshot.getAllTrips().size());
+
+      GtfsSnapshot.write(snapshotPath, gtfsPath, null, _dao, _csd);
+      assertFalse(GtfsSnapshot.isCurrent(snapshotPath, gtfsPath, routes));
+    } finally {
+      snapshotPath.delete();
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.services.LazyCalendarServiceData;
+import org.junit.Test;
+import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Check that LazyCalendarServiceData agrees with calendar data computed up front by onebusaway.
+ */
+public class LazyCalendarServiceDataTest extends RtTestRunner {
+
+  @Inject
+  private GtfsRelationalDao _dao;
+
+  @Test
+  public void testSameAsFactory() {
+    CalendarServiceData expected = new CalendarServiceDataFactoryImpl(_dao).createData();
+    LazyCalendarServiceData csd = new LazyCalendarServiceData(_dao);
+
+    assertEquals(expected.getServiceIds(), csd.getServiceIds());
+    assertEquals(expected.getTimeZoneForAgencyId(_agencyId), csd.getTimeZoneForAgencyId(_agencyId));
+
+    TreeSet<ServiceDate> dates = new TreeSet<>();
+    for (AgencyAndId serviceId : expected.getServiceIds()) {
+      assertEquals(serviceId.toString(), expected.getServiceDatesForServiceId(serviceId),
+              csd.getServiceDatesForServiceId(serviceId));
+      dates.addAll(expected.getServiceDatesForServiceId(serviceId));
+    }
+    assertFalse(dates.isEmpty());
+
+    // include a day either side of the feed
+    for (ServiceDate sd = dates.first().previous(); sd.compareTo(dates.last().next()) <= 0; sd = sd.next())
+      assertEquals(sd.toString(), expected.getServiceIdsForDate(sd), csd.getServiceIdsForDate(sd));
+  }
+}
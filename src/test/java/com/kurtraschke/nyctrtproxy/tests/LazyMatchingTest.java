@@ -21,8 +21,11 @@ import com.google.transit.realtime.GtfsRealtime.*;
 import com.google.transit.realtime.GtfsRealtimeNYCT;
 import com.kurtraschke.nyctrtproxy.model.NyctTripId;
 import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
+import com.kurtraschke.nyctrtproxy.model.TripUpdateContext;
 import com.kurtraschke.nyctrtproxy.services.ActivatedTripMatcher;
 import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
+import com.kurtraschke.nyctrtproxy.services.TripMatcher;
 import org.junit.Test;
 
 import java.io.IOException;
@@ -42,9 +45,15 @@ public abstract class LazyMatchingTest extends RtTestRunner {
   @Inject
   private ActivatedTripMatcher atm;
 
+  @Inject
+  private StaticTripIndex index;
+
   private String routeId;
   private String filename;
 
+  // ActivatedTripMatcher context for the trip replacement period being tested
+  protected TripMatcher.Context activatedTripContext;
+
   public LazyMatchingTest(String routeId, String filename) {
     this.routeId = routeId;
     this.filename = filename;
@@ -68,19 +77,21 @@ public abstract class LazyMatchingTest extends RtTestRunner {
                 .filter(tu -> tu.getTrip().getRouteId().equals(routeId))
                 .collect(Collectors.toList());
 
-        TimeRange range = trp.getReplacementPeriod();
-        Date start = range.hasStart() ? new Date(range.getStart() * 1000) : earliestTripStart(updates);
-        Date end = range.hasEnd() ? new Date(range.getEnd() * 1000) : new Date(msg.getHeader().getTimestamp() * 1000);
+        long timestamp = msg.getHeader().getTimestamp();
 
-        atm.initForFeed(start, end, Collections.singleton(routeId));
+        TimeRange range = trp.getReplacementPeriod();
+        Date start = range.hasStart() ? new Date(range.getStart() * 1000) : earliestTripStart(updates.stream()
+                .map(tu -> new TripUpdateContext(tu, routeId, Collections.emptySet(), index.getTripIdNames(), timestamp))
+                .collect(Collectors.toList()));
+        Date end = range.hasEnd() ? new Date(range.getEnd() * 1000) : new Date(timestamp * 1000);
 
-        long timestamp = msg.getHeader().getTimestamp();
+        activatedTripContext = atm.initForFeed(start, end, Collections.singleton(routeId));
 
         for (TripUpdate tu : updates) {
           TripUpdate.Builder tub = TripUpdate.newBuilder(tu);
 
           TripDescriptor.Builder tb = tub.getTripBuilder();
-          NyctTripId rtid = NyctTripId.buildFromTripDescriptor(tb);
+          NyctTripId rtid = NyctTripId.buildFromTripDescriptor(tb, Collections.emptySet(), index.getTripIdNames());
 
           if (rtid != null) {
             tub.getStopTimeUpdateBuilderList().forEach(stub -> {
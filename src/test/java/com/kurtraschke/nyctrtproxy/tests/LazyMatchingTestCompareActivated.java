@@ -37,7 +37,7 @@ public class LazyMatchingTestCompareActivated extends LazyMatchingTest {
 
   @Override
   public void checkMatchResult(long timestamp, NyctTripId rtid, GtfsRealtime.TripUpdateOrBuilder tripUpdate, TripMatchResult lazyTrip) {
-    TripMatchResult activatedTrip = atm.match(tripUpdate, rtid, timestamp);
+    TripMatchResult activatedTrip = atm.match(activatedTripContext, tripUpdate, rtid, timestamp);
 
     if (activatedTrip.hasResult()) {
       String atid = activatedTrip.getResult().getTrip().getId().getId();
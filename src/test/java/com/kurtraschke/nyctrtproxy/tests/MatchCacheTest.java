@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime.*;
+import com.kurtraschke.nyctrtproxy.model.ActivatedTrip;
+import com.kurtraschke.nyctrtproxy.model.MatchMetrics;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.StaticTrip;
+import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
+import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
+import com.kurtraschke.nyctrtproxy.services.TripActivator;
+import com.kurtraschke.nyctrtproxy.services.TripMatcher;
+import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that matches are reused across feed updates only while the matcher would still accept them.
+ */
+public class MatchCacheTest extends RtTestRunner {
+
+  private static final int FEED_ID = 1;
+  private static final String FEED = "1_2017-03-13.pb";
+
+  @Inject
+  private TripMatcher _matcher;
+
+  @Inject
+  private LazyTripMatcher _lazyTripMatcher;
+
+  @Inject
+  private TripActivator _tripActivator;
+
+  @Inject
+  private StaticTripIndex _index;
+
+  @Inject
+  private GtfsRelationalDao _dao;
+
+  @Inject
+  private CalendarServiceData _csd;
+
+  private CountingMatcher _countingMatcher;
+
+  private TripUpdateProcessor _processor;
+
+  @Before
+  public void setUp() {
+    // a processor of our own, so that its cache starts empty
+    _countingMatcher = new CountingMatcher(_matcher);
+    _processor = new TripUpdateProcessor();
+    _processor.setLatencyLimit(-1);
+    _processor.setTripActivator(_tripActivator);
+    _processor.setStaticTripIndex(_index);
+    _processor.setTripMatcher(_countingMatcher);
+  }
+
+  @Test
+  public void testHit() throws Exception {
+    FeedMessage msg = readFeedMessage(FEED);
+    List<TripUpdate> first = _processor.processFeed(FEED_ID, msg, new MatchMetrics());
+    int nFirst = _countingMatcher.reset();
+    List<TripUpdate> second = _processor.processFeed(FEED_ID, msg, new MatchMetrics());
+    int nSecond = _countingMatcher.reset();
+
+    assertTrue(nFirst > 0);
+    assertTrue(nSecond < nFirst);
+    assertEquals(first, second);
+  }
+
+  @Test
+  public void testMiss() throws Exception {
+    _countingMatcher.accept = false;
+    FeedMessage msg = readFeedMessage(FEED);
+    _processor.processFeed(FEED_ID, msg, new MatchMetrics());
+    int nFirst = _countingMatcher.reset();
+    _processor.processFeed(FEED_ID, msg, new MatchMetrics());
+    int nSecond = _countingMatcher.reset();
+
+    assertTrue(nFirst > 0);
+    assertEquals(nFirst, nSecond);
+  }
+
+  @Test
+  public void testInvalidatedOnReload() throws Exception {
+    FeedMessage msg = readFeedMessage(FEED);
+    _processor.processFeed(FEED_ID, msg, new MatchMetrics());
+    int nFirst = _countingMatcher.reset();
+    _processor.updateStaticGtfs(_dao, _csd, _index);
+    _processor.processFeed(FEED_ID, msg, new MatchMetrics());
+    int nSecond = _countingMatcher.reset();
+
+    assertTrue(nFirst > 0);
+    assertEquals(nFirst, nSecond);
+  }
+
+  @Test
+  public void testLazyTripMatcherAccepts() {
+    ServiceDate sd = new ServiceDate(2017, 3, 13);
+    ActivatedTrip trip1 = new ActivatedTrip(sd, getTrip("1"));
+    ActivatedTrip tripD = new ActivatedTrip(sd, getTrip("D"));
+
+    // loose match is kept while stops match, and dropped once they diverge
+    assertTrue(_lazyTripMatcher.acceptsMatch(TripMatchResult.looseMatch(tripUpdate("1", trip1, false), trip1, 60, true)));
+    assertFalse(_lazyTripMatcher.acceptsMatch(TripMatchResult.looseMatch(tripUpdate("1", trip1, true), trip1, 60, true)));
+
+    // strict matches, and loose matches on routes which may be merged, don't depend on stops
+    assertTrue(_lazyTripMatcher.acceptsMatch(new TripMatchResult(tripUpdate("1", trip1, true), trip1)));
+    assertTrue(_lazyTripMatcher.acceptsMatch(TripMatchResult.looseMatch(tripUpdate("D", tripD, true), tripD, 60, true)));
+  }
+
+  private StaticTrip getTrip(String routeId) {
+    List<StaticTrip> trips = _index.getTripsForRoute(new AgencyAndId(_agencyId, routeId));
+    for (StaticTrip trip : trips) {
+      if (trip.getStopIds().size() > 2)
+        return trip;
+    }
+    throw new IllegalStateException("no trip on route " + routeId);
+  }
+
+  // TripUpdate on the trip's last two stops; if diverged, the last stop is replaced with the trip's first.
+  private static TripUpdate.Builder tripUpdate(String routeId, ActivatedTrip trip, boolean diverged) {
+    List<String> stopIds = trip.getStopIds();
+    TripUpdate.Builder tub = TripUpdate.newBuilder();
+    tub.getTripBuilder().setRouteId(routeId).setTripId("rt");
+    tub.addStopTimeUpdateBuilder().setStopId(stopIds.get(stopIds.size() - 2));
+    tub.addStopTimeUpdateBuilder().setStopId(diverged ? stopIds.get(0) : stopIds.get(stopIds.size() - 1));
+    return tub;
+  }
+
+  // Counts calls to match, and accepts earlier matches or not as told.
+  private static class CountingMatcher implements TripMatcher {
+    private final TripMatcher _delegate;
+    private final AtomicInteger _nMatches = new AtomicInteger();
+    private volatile boolean accept = true;
+
+    CountingMatcher(TripMatcher delegate) {
+      _delegate = delegate;
+    }
+
+    int reset() {
+      return _nMatches.getAndSet(0);
+    }
+
+    @Override
+    public TripMatchResult match(Context context, TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp) {
+      _nMatches.incrementAndGet();
+      return _delegate.match(context, tu, rtid, timestamp);
+    }
+
+    @Override
+    public Context initForFeed(Date start, Date end, Set<String> routeIds) {
+      return _delegate.initForFeed(start, end, routeIds);
+    }
+
+    @Override
+    public boolean acceptsMatch(TripMatchResult result) {
+      return accept && _delegate.acceptsMatch(result);
+    }
+  }
+}
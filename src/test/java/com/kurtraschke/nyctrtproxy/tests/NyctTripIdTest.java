@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that NyctTripId parses trip IDs exactly as the regular expressions it replaced.
+ */
+public class NyctTripIdTest extends RtTestRunner {
+
+  private static final Pattern RT_TRIP_PATTERN = Pattern.compile(
+          "([A-Z0-9]+_)?(?<originDepartureTime>[0-9-]{6})_?(?<route>[A-Z0-9]+)\\.+(?<direction>[NS])(?<network>[A-Z0-9]*)$");
+
+  private static final Pattern STATIC_TRIP_PATTERN = Pattern.compile(
+          "(?<route>[A-Z0-9]+)\\.+(?<direction>[NS])(?<network>[A-Z0-9]*)$");
+
+  private static final String[] FILES = { "1_2017-03-13.pb", "1_2018-05-09.pb", "1_peak_sample.pb", "2_2017-03-13.pb",
+          "11_2017-03-13.pb", "11_2017-03-21.pb", "11_2017-03-23_00:33.pb", "16_2017-03-13.pb", "21_2017-03-13.pb",
+          "21_2017-04-20.pb", "51_2018-05-09.pb" };
+
+  private static final String[] EDGE_CASES = { "", "1..N", "034450_1..S03R", "034450_1..S", "034450_GS.N01R",
+          "A20171106WKD_034450_1..S03R", "SIR-FA2017-SI017-Weekday-08_121100_SI..N03R", "-00100_1..N", "12-345_1..N",
+          "------_1..N", "0344501..N", "034450__1..N", "034450_1..N\n", "034450_1..N\r\n", "034450_1..N\r",
+          "034450_1..N\u2028", "034450_1..N\n\n", "X_Y_034450_1..S", "034450_1..NN", "034450_1.N.S", "1234567890_A..N",
+          "034450_1..s", "034450_..N", "abc034450_1..N03R", "034450_1..N03R_", "034450_W..N", "1034450_1..N" };
+
+  // route and network IDs of static trips parsed in this test
+  private final NyctTripId.Names _names = new NyctTripId.Names();
+
+  @Test
+  public void testRealtimeTripIds() throws IOException {
+    int n = 0;
+    for (String file : FILES) {
+      for (GtfsRealtime.FeedEntity entity : readFeedMessage(file).getEntityList()) {
+        if (entity.hasTripUpdate()) {
+          assertParsedSame(entity.getTripUpdate().getTrip().getTripId());
+          n++;
+        }
+      }
+    }
+    assertTrue(n > 0);
+  }
+
+  @Test
+  public void testStaticTripIds() {
+    int n = 0;
+    GtfsRelationalDao gtfs = getGtfsWithStopTimes();
+    for (Trip trip : gtfs.getAllTrips()) {
+      assertParsedSame(trip.getId().getId());
+      List<StopTime> stopTimes = gtfs.getStopTimesForTrip(trip);
+      if (trip.getMtaTripId() != null && !stopTimes.isEmpty()) {
+        assertPathIdParsedSame(trip, stopTimes);
+      }
+      n++;
+    }
+    assertTrue(n > 0);
+  }
+
+  @Test
+  public void testEdgeCases() {
+    for (String tripId : EDGE_CASES) {
+      assertParsedSame(tripId);
+    }
+  }
+
+  @Test
+  public void testMatching() {
+    NyctTripId.Names names = new NyctTripId.Names();
+    NyctTripId.buildFromTrip(staticTrip("034450_1..S03R", "1"), names);
+
+    NyctTripId a = buildFromTripId("034450_1..S03R", names);
+    NyctTripId b = buildFromTripId("A20171106WKD_034450_1..S03R", names);
+    NyctTripId c = buildFromTripId("034450_1..S", names);
+    NyctTripId d = buildFromTripId("034500_1..S03R", names);
+    NyctTripId e = buildFromTripId("034450_1..N03R", names);
+
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertTrue(a.strictMatch(b));
+    assertFalse(a.strictMatch(c));
+    assertFalse(c.strictMatch(c));
+    assertTrue(a.looseMatch(c));
+    assertFalse(a.looseMatch(d));
+    assertTrue(a.routeDirMatch(d));
+    assertFalse(a.routeDirMatch(e));
+
+    NyctTripId previous = a.relativeToPreviousDay();
+    assertEquals(a.getOriginDepartureTime() + 24 * 60 * 100, previous.getOriginDepartureTime());
+    assertEquals(a.getPathId(), previous.getPathId());
+    assertEquals(a.getNetworkId(), previous.getNetworkId());
+    assertEquals("178450_1..S", previous.toString());
+
+    NyctTripId reversed = NyctTripId.buildFromTripId("034450_6..N", "6X", Collections.singleton("6X"));
+    assertEquals("6X", reversed.getRouteId());
+    assertEquals("S", reversed.getDirection());
+    assertEquals("034450_6..N", reversed.toString());
+  }
+
+  @Test
+  public void testUnknownNames() {
+    NyctTripId.Names names = new NyctTripId.Names();
+    NyctTripId staticId = NyctTripId.buildFromTrip(staticTrip("034450_1..S03R", "1"), names);
+    int size = names.size();
+
+    // realtime IDs not in static data are kept, but never match and are not added
+    NyctTripId unknownRoute = buildFromTripId("034450_Z9..S07X", names);
+    assertEquals("Z9", unknownRoute.getRouteId());
+    assertEquals("07X", unknownRoute.getNetworkId());
+    assertEquals("034450_Z9.S", unknownRoute.toString());
+    assertEquals(unknownRoute, buildFromTripId("034450_Z9..S07X", names));
+    assertFalse(unknownRoute.routeDirMatch(unknownRoute));
+    assertFalse(unknownRoute.looseMatch(unknownRoute));
+    assertFalse(unknownRoute.strictMatch(unknownRoute));
+
+    NyctTripId unknownNetwork = buildFromTripId("034450_1..S07X", names);
+    assertEquals("07X", unknownNetwork.getNetworkId());
+    assertTrue(staticId.looseMatch(unknownNetwork));
+    assertFalse(unknownNetwork.strictMatch(unknownNetwork));
+    assertFalse(unknownNetwork.equals(buildFromTripId("034450_1..S08X", names)));
+
+    NyctTripId unknownTripRoute = NyctTripId.buildFromTripId("034450_1..S03R", "Z9", Collections.emptySet(), names);
+    assertEquals("Z9", unknownTripRoute.getRouteId());
+    assertFalse(staticId.looseMatch(unknownTripRoute));
+    assertEquals(size, names.size());
+  }
+
+  @Test
+  public void testCapacity() {
+    NyctTripId.Names names = new NyctTripId.Names(2);
+    NyctTripId staticId = NyctTripId.buildFromTrip(staticTrip("034450_1..S03R", "1"), names);
+    assertEquals(2, names.size());
+
+    // a full table still looks up realtime IDs, known or not
+    assertTrue(staticId.strictMatch(buildFromTripId("034450_1..S03R", names)));
+    assertEquals("Z9", buildFromTripId("034450_Z9..N", names).getRouteId());
+    assertEquals(2, names.size());
+
+    try {
+      NyctTripId.buildFromTrip(staticTrip("034450_2..S03R", "2"), names);
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void testSeparateTables() {
+    NyctTripId.Names names = new NyctTripId.Names(), other = new NyctTripId.Names();
+    NyctTripId a = NyctTripId.buildFromTrip(staticTrip("034450_1..S03R", "1"), names);
+    NyctTripId b = NyctTripId.buildFromTrip(staticTrip("034450_1..S03R", "1"), other);
+    assertEquals(a.getKey(), b.getKey());
+    assertFalse(a.equals(b));
+    assertFalse(a.strictMatch(b));
+    assertFalse(a.looseMatch(b));
+    assertTrue(a.strictMatch(buildFromTripId("034450_1..S03R", names)));
+  }
+
+  private static NyctTripId buildFromTripId(String tripId) {
+    return NyctTripId.buildFromTripDescriptor(GtfsRealtime.TripDescriptor.newBuilder().setTripId(tripId));
+  }
+
+  private static NyctTripId buildFromTripId(String tripId, NyctTripId.Names names) {
+    return NyctTripId.buildFromTripId(tripId, null, Collections.emptySet(), names);
+  }
+
+  private static Trip staticTrip(String tripId, String routeId) {
+    Route route = new Route();
+    route.setId(new AgencyAndId("MTA NYCT", routeId));
+    Trip trip = new Trip();
+    trip.setId(new AgencyAndId("MTA NYCT", tripId));
+    trip.setRoute(route);
+    return trip;
+  }
+
+  private static void assertParsedSame(String tripId) {
+    Matcher matcher = RT_TRIP_PATTERN.matcher(tripId);
+    if (!matcher.find()) {
+      assertNull(tripId, buildFromTripId(tripId));
+      return;
+    }
+
+    int originDepartureTime;
+    try {
+      originDepartureTime = Integer.parseInt(matcher.group("originDepartureTime"), 10);
+    } catch (NumberFormatException e) {
+      try {
+        buildFromTripId(tripId);
+        fail("expected NumberFormatException for " + tripId);
+      } catch (NumberFormatException expected) {
+        assertEquals(tripId, e.getMessage(), expected.getMessage());
+      }
+      return;
+    }
+    String route = matcher.group("route");
+    String direction = matcher.group("direction");
+    String pathId = StringUtils.rightPad(route, 3, '.') + direction;
+    String network = matcher.group("network").isEmpty() ? null : matcher.group("network");
+
+    NyctTripId id = buildFromTripId(tripId);
+    assertNotNull(tripId, id);
+    assertEquals(tripId, originDepartureTime, id.getOriginDepartureTime());
+    assertEquals(tripId, route, id.getRouteId());
+    assertEquals(tripId, direction, id.getDirection());
+    assertEquals(tripId, network, id.getNetworkId());
+    assertEquals(tripId, pathId, id.getPathId());
+    assertEquals(tripId, String.format("%06d_%s", originDepartureTime, pathId), id.toString());
+  }
+
+  private void assertPathIdParsedSame(Trip trip, List<StopTime> stopTimes) {
+    String pathId = trip.getMtaTripId();
+    Matcher matcher = STATIC_TRIP_PATTERN.matcher(pathId);
+    if (!matcher.find()) {
+      try {
+        NyctTripId.buildFromGtfs(trip, stopTimes, _names);
+        fail("expected IllegalArgumentException for " + pathId);
+      } catch (IllegalArgumentException expected) {
+        return;
+      }
+    }
+    NyctTripId id = NyctTripId.buildFromGtfs(trip, stopTimes, _names);
+    assertEquals(pathId, matcher.group("network"), id.getNetworkId());
+    assertEquals(pathId, pathId, id.getPathId());
+    assertEquals(pathId, trip.getRoute().getId().getId(), id.getRouteId());
+  }
+}
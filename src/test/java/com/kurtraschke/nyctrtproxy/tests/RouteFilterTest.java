@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.services.GtfsRelationalDaoProvider;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RouteFilterTest extends RtTestRunner {
+
+  @Inject
+  private GtfsRelationalDao _dao;
+
+  @Test
+  public void testRouteFilter() {
+    GtfsRelationalDaoProvider provider = new GtfsRelationalDaoProvider();
+    provider.setGtfsPath(new File(TestCase.class.getResource("/google_transit.zip").getFile()));
+    provider.setRoutes("[\"1\"]");
+    GtfsRelationalDao filtered = provider.get();
+
+    assertEquals(1, filtered.getAllRoutes().size());
+    for (Route route : filtered.getAllRoutes())
+      assertEquals("1", route.getId().getId());
+
+    GtfsRelationalDao gtfs = getGtfsWithStopTimes();
+    int nTrips = 0;
+    for (Trip trip : gtfs.getAllTrips()) {
+      if (trip.getRoute().getId().getId().equals("1")) {
+        assertEquals(gtfs.getStopTimesForTrip(trip).size(),
+                filtered.getStopTimesForTrip(filtered.getTripForId(trip.getId())).size());
+        nTrips++;
+      }
+    }
+    assertTrue(nTrips > 0);
+    assertEquals(nTrips, filtered.getAllTrips().size());
+
+    for (StopTime stopTime : filtered.getAllStopTimes())
+      assertFalse(stopTime.getTrip() == null);
+
+    // all stops are kept, so RT stops of any route can be checked against static data
+    assertEquals(_dao.getAllStops().size(), filtered.getAllStops().size());
+  }
+}
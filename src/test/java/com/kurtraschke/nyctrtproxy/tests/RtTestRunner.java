@@ -15,25 +15,28 @@
  */
 package com.kurtraschke.nyctrtproxy.tests;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Module;
+import com.google.inject.Provides;
 import com.google.inject.Scopes;
 import com.google.inject.name.Names;
-import com.google.protobuf.ExtensionRegistry;
 import com.google.transit.realtime.GtfsRealtime;
-import com.google.transit.realtime.GtfsRealtimeNYCT;
+import com.kurtraschke.nyctrtproxy.model.StaticTrip;
 import com.kurtraschke.nyctrtproxy.services.ActivatedTripMatcher;
-import com.kurtraschke.nyctrtproxy.services.CalendarServiceDataProvider;
 import com.kurtraschke.nyctrtproxy.services.CloudwatchProxyDataListener;
 import com.kurtraschke.nyctrtproxy.services.GtfsRelationalDaoProvider;
 import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
 import com.kurtraschke.nyctrtproxy.services.ProxyDataListener;
+import com.kurtraschke.nyctrtproxy.services.StaticGtfsReloader;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
 import com.kurtraschke.nyctrtproxy.services.TripActivator;
 import com.kurtraschke.nyctrtproxy.services.TripMatcher;
 import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import com.kurtraschke.nyctrtproxy.util.NycRealtimeUtil;
 import junit.framework.TestCase;
 import org.junit.Before;
 import org.onebusaway.gtfs.model.AgencyAndId;
@@ -44,24 +47,27 @@ import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 public abstract class RtTestRunner {
 
   @Inject
   private GtfsRelationalDao _dao;
 
-  protected static ExtensionRegistry _extensionRegistry;
+  @Inject
+  private StaticTripIndex _index;
+
   protected String _agencyId = "MTA NYCT";
 
   private static Injector _injector;
 
+  private static GtfsRelationalDao _gtfsWithStopTimes;
+
   static {
     _injector = Guice.createInjector(getTestModule());
-
-    _extensionRegistry = ExtensionRegistry.newInstance();
-    _extensionRegistry.add(GtfsRealtimeNYCT.nyctFeedHeader);
-    _extensionRegistry.add(GtfsRealtimeNYCT.nyctTripDescriptor);
-    _extensionRegistry.add(GtfsRealtimeNYCT.nyctStopTimeUpdate);
   }
 
   @Before
@@ -71,7 +77,7 @@ public abstract class RtTestRunner {
 
   public GtfsRealtime.FeedMessage readFeedMessage(String file) throws IOException {
     InputStream stream = this.getClass().getResourceAsStream("/" + file);
-    GtfsRealtime.FeedMessage msg = GtfsRealtime.FeedMessage.parseFrom(stream, _extensionRegistry);
+    GtfsRealtime.FeedMessage msg = GtfsRealtime.FeedMessage.parseFrom(stream, NycRealtimeUtil.getExtensionRegistry());
     return msg;
   }
 
@@ -80,23 +86,43 @@ public abstract class RtTestRunner {
     return _dao.getTripForId(new AgencyAndId(_agencyId, tid));
   }
 
+  // Stop IDs of a static trip. They are read through the index, as stop times are dropped from the DAO once indexed.
+  public List<String> getStopIds(Trip trip) {
+    for (StaticTrip staticTrip : _index.getTripsForRoute(trip.getRoute().getId())) {
+      if (staticTrip.getTrip().equals(trip))
+        return staticTrip.getStopIds();
+    }
+    return Collections.emptyList();
+  }
+
+  // Test GTFS as read, with the stop times which the injected DAO drops once they are indexed.
+  protected static synchronized GtfsRelationalDao getGtfsWithStopTimes() {
+    if (_gtfsWithStopTimes == null)
+      _gtfsWithStopTimes = _injector.getInstance(GtfsRelationalDaoProvider.class).get();
+    return _gtfsWithStopTimes;
+  }
+
   protected static Module getTestModule() {
     return getTestModule("google_transit.zip", "MTA NYCT", false);
   }
 
   protected static Module getTestModule(String gtfsPath, String agencyId, boolean cancelUnmatchedTrips) {
+    return getTestModule(new File(TestCase.class.getResource("/" + gtfsPath).getFile()), agencyId, cancelUnmatchedTrips);
+  }
+
+  protected static Module getTestModule(File gtfsPath, String agencyId, boolean cancelUnmatchedTrips) {
     return new AbstractModule() {
       @Override protected void configure() {
-        bind(CalendarServiceData.class)
-                .toProvider(CalendarServiceDataProvider.class)
-                .in(Scopes.SINGLETON);
-
         bind(File.class)
                 .annotatedWith(Names.named("NYCT.gtfsPath"))
-                .toInstance(new File(TestCase.class.getResource("/" + gtfsPath).getFile()));
+                .toInstance(gtfsPath);
+
+        bind(ScheduledExecutorService.class)
+                .toInstance(Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder().setDaemon(true).build()));
 
-        bind(GtfsRelationalDao.class)
-                .toProvider(GtfsRelationalDaoProvider.class)
+        // static GTFS is loaded and reloaded as in ProxyModule
+        bind(StaticGtfsReloader.class)
                 .in(Scopes.SINGLETON);
 
         CloudwatchProxyDataListener listener = new CloudwatchProxyDataListener();
@@ -125,6 +151,21 @@ public abstract class RtTestRunner {
         bind(ActivatedTripMatcher.class)
                 .toInstance(new ActivatedTripMatcher());
       }
+
+      @Provides
+      GtfsRelationalDao provideGtfsRelationalDao(StaticGtfsReloader reloader) {
+        return reloader.getGtfsRelationalDao();
+      }
+
+      @Provides
+      CalendarServiceData provideCalendarServiceData(StaticGtfsReloader reloader) {
+        return reloader.getCalendarServiceData();
+      }
+
+      @Provides
+      StaticTripIndex provideStaticTripIndex(StaticGtfsReloader reloader) {
+        return reloader.getStaticTripIndex();
+      }
     };
   }
 
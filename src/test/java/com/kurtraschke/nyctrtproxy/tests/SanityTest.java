@@ -20,14 +20,12 @@ import com.google.transit.realtime.GtfsRealtime.*;
 import com.kurtraschke.nyctrtproxy.model.MatchMetrics;
 import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
 import org.onebusaway.gtfs.model.Trip;
-import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -38,9 +36,6 @@ public abstract class SanityTest extends RtTestRunner {
   @Inject
   protected TripUpdateProcessor _processor;
 
-  @Inject
-  private GtfsRelationalDao _dao;
-
   protected void test(int feedId, String protobuf, int nScheduledExpected, int nAddedExpected) throws Exception {
     FeedMessage msg = readFeedMessage(protobuf);
     List<TripUpdate> updates = _processor.processFeed(feedId, msg, new MatchMetrics());
@@ -89,10 +84,7 @@ public abstract class SanityTest extends RtTestRunner {
     List<TripUpdate.StopTimeUpdate> stus = tripUpdate.getStopTimeUpdateList();
     assertFalse(stus.isEmpty());
 
-    Set<String> stopIds = _dao.getStopTimesForTrip(trip)
-            .stream()
-            .map(st -> st.getStop().getId().getId())
-            .collect(Collectors.toSet());
+    Set<String> stopIds = new HashSet<>(getStopIds(trip));
 
     for (TripUpdate.StopTimeUpdate stu : stus) {
       assertTrue(stopIds.contains(stu.getStopId()));
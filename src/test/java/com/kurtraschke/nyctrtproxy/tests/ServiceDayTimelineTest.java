@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.model.ActivatedTrip;
+import com.kurtraschke.nyctrtproxy.model.StaticTrip;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that trips from precomputed service day timelines are the trips of active services running in a range.
+ */
+public class ServiceDayTimelineTest extends RtTestRunner {
+
+  @Inject
+  private GtfsRelationalDao _dao;
+
+  @Inject
+  private StaticTripIndex _index;
+
+  @Inject
+  private CalendarServiceData _csd;
+
+  @Test
+  public void testSameAsActiveServices() {
+    // first date of each service in the test GTFS
+    Set<ServiceDate> dates = new HashSet<>();
+    for (AgencyAndId serviceId : _csd.getServiceIds()) {
+      List<ServiceDate> serviceDates = _csd.getServiceDatesForServiceId(serviceId);
+      if (!serviceDates.isEmpty())
+        dates.add(serviceDates.get(0));
+    }
+    assertTrue(!dates.isEmpty());
+
+    int n = 0;
+    for (ServiceDate sd : dates) {
+      _index.precompute(sd);
+      BitSet services = _index.getActiveServices(sd);
+      for (Route route : _dao.getAllRoutes()) {
+        for (int from = 0; from < 28 * 3600; from += 1800) {
+          int to = from + 3600;
+          Set<StaticTrip> expected = new HashSet<>();
+          for (StaticTrip trip : _index.getTripsForRoute(route.getId())) {
+            if (services.get(trip.getServiceIndex()) && trip.getStartTime() <= to && trip.getEndTime() >= from)
+              expected.add(trip);
+          }
+          List<ActivatedTrip> activated = _index.getActivatedTripsForRouteActive(route.getId(), sd, from, to);
+          Set<StaticTrip> actual = new HashSet<>();
+          for (ActivatedTrip at : activated) {
+            assertEquals(sd, at.getServiceDate());
+            actual.add(at.getStaticTrip());
+          }
+          assertEquals(expected.size(), activated.size());
+          assertEquals(expected, actual);
+          n += activated.size();
+        }
+      }
+    }
+    assertTrue(n > 0);
+  }
+
+  @Test
+  public void testServiceDateInAgencyTimeZone() {
+    assertEquals(_csd.getTimeZoneForAgencyId(_agencyId), _index.getTimeZone());
+    // 2017-03-14 02:30 UTC is still the evening of the 13th in New York
+    long t = Instant.parse("2017-03-14T02:30:00Z").toEpochMilli();
+    assertEquals(new ServiceDate(2017, 3, 13), _index.getServiceDate(t));
+  }
+}
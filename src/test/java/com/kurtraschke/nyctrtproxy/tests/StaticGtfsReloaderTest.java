@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.util.Modules;
+import com.google.transit.realtime.GtfsRealtime.TripUpdateOrBuilder;
+import com.kurtraschke.nyctrtproxy.model.MatchMetrics;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.model.TripMatchResult;
+import com.kurtraschke.nyctrtproxy.services.DirectionsService;
+import com.kurtraschke.nyctrtproxy.services.LazyTripMatcher;
+import com.kurtraschke.nyctrtproxy.services.StaticGtfsReloader;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
+import com.kurtraschke.nyctrtproxy.services.TripActivator;
+import com.kurtraschke.nyctrtproxy.services.TripMatcher;
+import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that a changed GTFS file is reloaded once it has settled, and swapped in everywhere static GTFS is used.
+ */
+public class StaticGtfsReloaderTest extends RtTestRunner {
+
+  private static final int FEED_ID = 1;
+  private static final String FEED = "1_2017-03-13.pb";
+
+  private File _gtfsPath;
+
+  private RecordingMatcher _matcher;
+
+  private RecordingActivator _activator;
+
+  private RecordingDirectionsService _directionsService;
+
+  private StaticGtfsReloader _reloader;
+
+  private TripUpdateProcessor _processor;
+
+  @Before
+  public void setUp() throws IOException {
+    _gtfsPath = File.createTempFile("gtfs", ".zip");
+    copyGtfs();
+
+    _matcher = new RecordingMatcher();
+    _activator = new RecordingActivator();
+    _directionsService = new RecordingDirectionsService();
+    Injector injector = Guice.createInjector(Modules.override(getTestModule(_gtfsPath, "MTA NYCT", false))
+            .with(new AbstractModule() {
+              @Override protected void configure() {
+                bind(TripMatcher.class).toInstance(_matcher);
+                bind(TripActivator.class).toInstance(_activator);
+              }
+            }));
+    _reloader = injector.getInstance(StaticGtfsReloader.class);
+    _processor = injector.getInstance(TripUpdateProcessor.class);
+    _processor.setDirectionsService(_directionsService);
+  }
+
+  @After
+  public void tearDown() {
+    _gtfsPath.delete();
+  }
+
+  @Test
+  public void testReload() throws IOException {
+    StaticTripIndex before = _reloader.getStaticTripIndex();
+    assertSame(before, _processor.getStaticTripIndex());
+
+    // unchanged file is not reloaded
+    _reloader.checkForUpdate();
+    assertSame(before, _reloader.getStaticTripIndex());
+
+    touch();
+    _reloader.checkForUpdate();
+    assertSame(before, _reloader.getStaticTripIndex()); // not settled yet
+    _reloader.checkForUpdate();
+    assertSwapped(before);
+  }
+
+  @Test
+  public void testLoadFailure() throws IOException {
+    StaticTripIndex before = _reloader.getStaticTripIndex();
+
+    Files.write(_gtfsPath.toPath(), new byte[] { 1, 2, 3 });
+    _reloader.checkForUpdate();
+    _reloader.checkForUpdate();
+    _reloader.checkForUpdate();
+    assertSame(before, _reloader.getStaticTripIndex());
+    assertSame(before, _processor.getStaticTripIndex());
+    assertSame(before, _matcher.index);
+
+    // loads once the file is fixed
+    copyGtfs();
+    touch();
+    _reloader.checkForUpdate();
+    _reloader.checkForUpdate();
+    assertSwapped(before);
+  }
+
+  @Test
+  public void testCachesCleared() throws IOException {
+    byte[] payload = Files.readAllBytes(new File(TestCase.class.getResource("/" + FEED).getFile()).toPath());
+    _processor.processFeed(FEED_ID, payload, new MatchMetrics());
+    int nFirst = _matcher.reset();
+    _processor.processFeed(FEED_ID, payload, new MatchMetrics());
+    assertTrue(nFirst > 0);
+    assertEquals(0, _matcher.reset()); // output reused
+
+    touch();
+    _reloader.checkForUpdate();
+    _reloader.checkForUpdate();
+
+    // neither output nor matches are reused against the new GTFS
+    _processor.processFeed(FEED_ID, payload, new MatchMetrics());
+    assertEquals(nFirst, _matcher.reset());
+  }
+
+  private void assertSwapped(StaticTripIndex before) {
+    StaticTripIndex index = _reloader.getStaticTripIndex();
+    assertNotSame(before, index);
+    assertSame(index, _processor.getStaticTripIndex());
+    assertSame(index, _matcher.index);
+    assertSame(index, _activator.index);
+    assertSame(_reloader.getGtfsRelationalDao(), _directionsService.dao);
+  }
+
+  private void copyGtfs() throws IOException {
+    File gtfs = new File(TestCase.class.getResource("/google_transit.zip").getFile());
+    Files.copy(gtfs.toPath(), _gtfsPath.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void touch() {
+    assertTrue(_gtfsPath.setLastModified(_gtfsPath.lastModified() + 60000));
+  }
+
+  private static class RecordingMatcher extends LazyTripMatcher {
+    private final AtomicInteger _nMatches = new AtomicInteger();
+    private volatile StaticTripIndex index;
+
+    int reset() {
+      return _nMatches.getAndSet(0);
+    }
+
+    @Inject // Guice does not inject overrides which are not annotated themselves
+    @Override
+    public void setStaticTripIndex(StaticTripIndex index) {
+      super.setStaticTripIndex(index);
+      this.index = index;
+    }
+
+    @Override
+    public void updateStaticGtfs(GtfsRelationalDao dao, CalendarServiceData csd, StaticTripIndex index) {
+      super.updateStaticGtfs(dao, csd, index);
+      this.index = index;
+    }
+
+    @Override
+    public TripMatchResult match(Context context, TripUpdateOrBuilder tu, NyctTripId rtid, long timestamp) {
+      _nMatches.incrementAndGet();
+      return super.match(context, tu, rtid, timestamp);
+    }
+  }
+
+  private static class RecordingActivator extends TripActivator {
+    private volatile StaticTripIndex index;
+
+    @Override
+    public void updateStaticGtfs(GtfsRelationalDao dao, CalendarServiceData csd, StaticTripIndex index) {
+      super.updateStaticGtfs(dao, csd, index);
+      this.index = index;
+    }
+  }
+
+  private static class RecordingDirectionsService extends DirectionsService {
+    private volatile GtfsRelationalDao dao;
+
+    @Override
+    public void updateGtfsRelationalDao(GtfsRelationalDao dao) {
+      super.updateGtfsRelationalDao(dao);
+      this.dao = dao;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.kurtraschke.nyctrtproxy.model.NyctTripId;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
+import com.kurtraschke.nyctrtproxy.services.StopIdNormalizer;
+import com.kurtraschke.nyctrtproxy.transform.StopIdTransformStrategy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Check that StopIdNormalizer rewrites stop IDs the same way TripUpdateProcessor did before it had tables.
+ */
+public class StopIdNormalizerTest extends RtTestRunner {
+
+  private static final Set<String> REVERSED = Collections.singleton("6X");
+
+  private static final StopIdTransformStrategy TRANSFORM = (route, direction, stop) ->
+          route.equals("1") ? stop.replace("101", "102") : stop;
+
+  @Inject
+  private StaticTripIndex _index;
+
+  @Test
+  public void testNormalRoute() {
+    check(null, "1", "034450_1..N");
+    check(null, "1", "034450_1..S");
+  }
+
+  @Test
+  public void testReversedRoute() {
+    check(null, "6X", "034450_6..N");
+    check(null, "6X", "034450_6..S");
+  }
+
+  @Test
+  public void testTransformStrategy() {
+    check(TRANSFORM, "1", "034450_1..N");
+    check(TRANSFORM, "6X", "034450_6..S");
+    check(TRANSFORM, "2", "034450_2..S");
+  }
+
+  @Test
+  public void testUnknownRoute() {
+    StopIdNormalizer normalizer = newNormalizer(null);
+    NyctTripId known = NyctTripId.buildFromTripId("034450_1..N", "1", REVERSED);
+    assertSame(normalizer.getTable("1", known), normalizer.getTable("1", known));
+
+    // tables of routes which are not in static data are not kept, but still normalize
+    NyctTripId unknown = NyctTripId.buildFromTripId("034450_ZZ..N", "ZZ", REVERSED);
+    assertFalse(_index.getAllRouteIds().contains(unknown.getRouteId()));
+    assertNotSame(normalizer.getTable("ZZ", unknown), normalizer.getTable("ZZ", unknown));
+    assertEquals("101N", normalizer.getTable("ZZ", unknown).normalize("101"));
+  }
+
+  private StopIdNormalizer newNormalizer(StopIdTransformStrategy strategy) {
+    return new StopIdNormalizer(_index.getAllStopIds(), _index.getAllRouteIds(), REVERSED, strategy);
+  }
+
+  private void check(StopIdTransformStrategy strategy, String tripRouteId, String tripId) {
+    NyctTripId rtid = NyctTripId.buildFromTripId(tripId, tripRouteId, REVERSED);
+    StopIdNormalizer normalizer = newNormalizer(strategy);
+    StopIdNormalizer.Table table = normalizer.getTable(tripRouteId, rtid);
+
+    List<String> stopIds = new ArrayList<>(Arrays.asList("", "X99", "X99N", "X99S", "N", "S"));
+    for (String stopId : _index.getAllStopIds()) {
+      stopIds.add(stopId);
+      stopIds.add(stopId.substring(0, stopId.length() - 1));
+    }
+
+    // twice: once computed, once from the table
+    for (int i = 0; i < 2; i++) {
+      for (String stopId : stopIds)
+        assertEquals(stopId, baseline(stopId, tripRouteId, rtid, strategy), table.normalize(stopId));
+    }
+  }
+
+  // the rewrite TripUpdateProcessor used to do inline for each stop time update
+  private static String baseline(String stopId, String tripRouteId, NyctTripId rtid, StopIdTransformStrategy strategy) {
+    if (!(stopId.endsWith("N") || stopId.endsWith("S"))) {
+      stopId = stopId + rtid.getDirection();
+    } else if (REVERSED.contains(tripRouteId)) {
+      stopId = stopId.substring(0, stopId.length() - 1) + rtid.getDirection();
+    }
+    if (strategy != null) {
+      stopId = strategy.transform(rtid.getRouteId(), rtid.getDirection(), stopId);
+    }
+    return stopId;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 Cambridge Systematics, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.nyctrtproxy.tests;
+
+import com.google.inject.Inject;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.kurtraschke.nyctrtproxy.model.MatchMetrics;
+import com.kurtraschke.nyctrtproxy.model.StaticTrip;
+import com.kurtraschke.nyctrtproxy.services.StaticTripIndex;
+import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
+import org.junit.Test;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that stop times read through StaticTrip are the same as the GTFS stop times, and are only read that way.
+ */
+public class StopTimeTableTest extends RtTestRunner {
+
+  @Inject
+  private GtfsRelationalDao _dao;
+
+  @Inject
+  private StaticTripIndex _index;
+
+  @Inject
+  private TripUpdateProcessor _processor;
+
+  @Test
+  public void testStopTimes() {
+    GtfsRelationalDao gtfs = getGtfsWithStopTimes();
+    int n = 0;
+    for (Route route : _dao.getAllRoutes()) {
+      for (StaticTrip trip : _index.getTripsForRoute(route.getId())) {
+        List<StopTime> stopTimes = gtfs.getStopTimesForTrip(gtfs.getTripForId(trip.getTrip().getId()));
+        assertEquals(stopTimes.size(), trip.getStopCount());
+        for (int i = 0; i < stopTimes.size(); i++) {
+          assertEquals(stopTimes.get(i).getArrivalTime(), trip.getArrivalTime(i));
+          assertEquals(stopTimes.get(i).getDepartureTime(), trip.getDepartureTime(i));
+          assertEquals(stopTimes.get(i).getStop().getId().getId(), trip.getStopIds().get(i));
+        }
+        assertEquals(stopTimes.get(0).getDepartureTime(), trip.getStartTime());
+        assertEquals(stopTimes.get(stopTimes.size() - 1).getArrivalTime(), trip.getEndTime());
+        n++;
+      }
+    }
+    assertTrue(n > 0);
+  }
+
+  // The DAO the rest of the proxy is given has no stop times, so processing must only read them through the index.
+  @Test
+  public void testDroppedFromDao() throws Exception {
+    assertTrue(_dao.getAllStopTimes().isEmpty());
+    for (Trip trip : _dao.getAllTrips())
+      assertTrue(_dao.getStopTimesForTrip(trip).isEmpty());
+
+    int nScheduled = 0;
+    for (TripUpdate tu : _processor.processFeed(1, readFeedMessage("1_2017-03-13.pb"), new MatchMetrics())) {
+      if (tu.getTrip().getScheduleRelationship() == TripDescriptor.ScheduleRelationship.SCHEDULED) {
+        assertFalse(getStopIds(getTrip(tu)).isEmpty());
+        nScheduled++;
+      }
+    }
+    assertTrue(nScheduled > 0);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testOutOfRange() {
+    for (Route route : _dao.getAllRoutes()) {
+      for (StaticTrip trip : _index.getTripsForRoute(route.getId())) {
+        trip.getArrivalTime(trip.getStopCount());
+      }
+    }
+  }
+}
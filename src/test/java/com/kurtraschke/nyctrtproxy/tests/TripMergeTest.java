@@ -22,7 +22,6 @@ import com.kurtraschke.nyctrtproxy.model.NyctTripId;
 import com.kurtraschke.nyctrtproxy.services.TripUpdateProcessor;
 import org.junit.Test;
 import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
 
@@ -59,7 +58,7 @@ public class TripMergeTest extends RtTestRunner {
     TripUpdate update = tus.get(0);
 
     List<String> stopTimes = update.getStopTimeUpdateList().stream().map(stu -> stu.getStopId()).collect(Collectors.toList());
-    List<String> gtfsStops = getStopTimesForTripUpdate(update).stream().map(s -> s.getStop().getId().getId()).collect(Collectors.toList());
+    List<String> gtfsStops = getStopIdsForTripUpdate(update);
 
     assertEquals(stopTimes, gtfsStops);
 
@@ -69,12 +68,12 @@ public class TripMergeTest extends RtTestRunner {
     assertEquals(stopTimes, sortedStopTimes);
   }
 
-  private List<StopTime> getStopTimesForTripUpdate(TripUpdate tu) {
+  private List<String> getStopIdsForTripUpdate(TripUpdate tu) {
     String tripId = tu.getTrip().getTripId();
     Trip trip = _dao.getTripForId(new AgencyAndId("MTA NYCT", tripId));
     if (trip == null)
       return Collections.emptyList();
-    return _dao.getStopTimesForTrip(trip);
+    return getStopIds(trip);
   }
 
   private List<TripUpdate> getByRouteDirectionAndTime(List<TripUpdate> updates, String routeId, String direction, int odtime) {